@@ -17,15 +17,28 @@
  */
 package org.omnirom.omnijaws;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.http.HttpEntity;
+import org.apache.http.HttpRequest;
 import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
 import org.apache.http.client.methods.HttpGet;
-import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.util.EntityUtils;
 
 import android.content.Context;
 import android.location.Location;
@@ -34,31 +47,249 @@ import android.util.Log;
 public abstract class AbstractWeatherProvider {
     private static final String TAG = "AbstractWeatherProvider";
     private static final boolean DEBUG = true;
+    private static final int FETCH_THREADS = 4;
+    private static final long FETCH_THREAD_KEEP_ALIVE_SEC = 30;
+
+    private static final ThreadPoolExecutor sFetchExecutor;
+    static {
+        sFetchExecutor = new ThreadPoolExecutor(FETCH_THREADS, FETCH_THREADS,
+                FETCH_THREAD_KEEP_ALIVE_SEC, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        return new Thread(r, "WeatherFetch #" + mCount.incrementAndGet());
+                    }
+                });
+        sFetchExecutor.allowCoreThreadTimeOut(true);
+    }
+
     protected Context mContext;
 
+    /**
+     * Consumes a response body straight from the network or cache stream
+     * The stream is owned by the caller and must not be closed.
+     */
+    protected interface ResponseParser<T> {
+        T parse(InputStream in) throws IOException;
+    }
+
+    private static final ResponseParser<String> STRING_PARSER = new ResponseParser<String>() {
+        @Override
+        public String parse(InputStream in) throws IOException {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+            }
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        }
+    };
+
     public AbstractWeatherProvider(Context context) {
         mContext = context;
     }
 
     protected String retrieve(String url) {
+        return fetch(url, null, STRING_PARSER);
+    }
+
+    /**
+     * Like retrieve(String) but hands the body to the parser without
+     * buffering it in memory first. A null result is treated as failure.
+     */
+    protected <T> T retrieve(String url, ResponseParser<T> parser) {
+        return fetch(url, null, parser);
+    }
+
+    /**
+     * Fetches all urls in parallel and returns the responses in the same order.
+     * If any of the requests fails the others are cancelled and null is returned.
+     */
+    protected String[] retrieveAll(String... urls) {
+        CompletionService<String> completion = new ExecutorCompletionService<>(sFetchExecutor);
+        List<FetchTask> tasks = new ArrayList<>(urls.length);
+        List<Future<String>> futures = new ArrayList<>(urls.length);
+        for (String url : urls) {
+            FetchTask task = new FetchTask(url);
+            tasks.add(task);
+            futures.add(completion.submit(task));
+        }
+
+        String[] results = new String[urls.length];
+        boolean failed = false;
+        try {
+            for (int i = 0; i < urls.length; i++) {
+                Future<String> done = completion.take();
+                String result = done.get();
+                if (result == null) {
+                    failed = true;
+                    break;
+                }
+                results[futures.indexOf(done)] = result;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            failed = true;
+        } catch (ExecutionException e) {
+            Log.e(TAG, "Parallel fetch failed", e.getCause());
+            failed = true;
+        }
+
+        if (failed) {
+            for (int i = 0; i < tasks.size(); i++) {
+                tasks.get(i).cancel();
+                futures.get(i).cancel(true);
+            }
+            return null;
+        }
+        return results;
+    }
+
+    private class FetchTask implements Callable<String> {
+        private final String mUrl;
+        // scope of the thread that started the fetch
+        private final RequestScope mScope = RequestScope.current();
+        private HttpGet mRequest;
+        private boolean mCancelled;
+
+        FetchTask(String url) {
+            mUrl = url;
+        }
+
+        @Override
+        public String call() {
+            if (mScope == null) {
+                return fetch(mUrl, this, STRING_PARSER);
+            }
+            mScope.enter();
+            try {
+                return fetch(mUrl, this, STRING_PARSER);
+            } finally {
+                mScope.exit();
+            }
+        }
+
+        synchronized void setRequest(HttpGet request) {
+            mRequest = request;
+            if (mCancelled) {
+                request.abort();
+            }
+        }
+
+        synchronized void cancel() {
+            mCancelled = true;
+            if (mRequest != null) {
+                mRequest.abort();
+            }
+        }
+    }
+
+    private <T> T fetch(String url, FetchTask task, ResponseParser<T> parser) {
+        WeatherHttpCache cache = WeatherHttpCache.get(mContext);
+        WeatherHttpCache.Entry cached = cache.lookup(url);
+        if (cached != null && cached.isFresh()) {
+            T result = parseCached(cache, cached, parser);
+            if (result != null) {
+                cache.recordHit();
+                log(TAG, "Cache hit for " + cached.key);
+                return result;
+            }
+            cached = null;
+        }
+
         HttpGet request = new HttpGet(url);
+        addRequestHeaders(request);
+        final RequestScope scope = RequestScope.current();
+        if (scope != null && !scope.register(request)) {
+            log(TAG, "Request cancelled");
+            return null;
+        }
+        if (task != null) {
+            // allows the request to be aborted from another thread
+            task.setRequest(request);
+        }
+        if (cached != null) {
+            cache.addConditionalHeaders(cached, request);
+        }
+        HttpEntity entity = null;
+        WeatherHttpCache.Editor editor = null;
         try {
-            HttpResponse response = new DefaultHttpClient().execute(request);
+            HttpResponse response = WeatherHttpClient.get(mContext).execute(request);
+            entity = response.getEntity();
             int code = response.getStatusLine().getStatusCode();
-            if (code != HttpStatus.SC_OK) {
+            if (code == HttpStatus.SC_NOT_MODIFIED && cached != null) {
+                cache.update(cached, response);
+                cache.recordRevalidation();
+                log(TAG, "Not modified " + cached.key);
+                return parseCached(cache, cached, parser);
+            }
+            if (code != HttpStatus.SC_OK && code != HttpStatus.SC_NON_AUTHORITATIVE_INFORMATION) {
                 log(TAG, "HttpStatus: " + code + " for url: " + url);
                 return null;
             }
-            HttpEntity entity = response.getEntity();
             if (entity != null) {
-                return EntityUtils.toString(entity);
+                cache.recordMiss();
+                InputStream in = entity.getContent();
+                editor = cache.edit(url, response);
+                if (editor != null) {
+                    // write the body to the cache while it is being parsed
+                    in = editor.tee(in);
+                }
+                T result = parser.parse(in);
+                if (editor != null) {
+                    if (result != null) {
+                        editor.commit();
+                    } else {
+                        editor.abort();
+                    }
+                    editor = null;
+                }
+                return result;
             }
         } catch (IOException e) {
             Log.e(TAG, "Couldn't retrieve data from url " + url, e);
+            request.abort();
+        } finally {
+            if (editor != null) {
+                editor.abort();
+            }
+            WeatherHttpClient.release(entity);
+            if (scope != null) {
+                scope.unregister(request);
+            }
+        }
+        return null;
+    }
+
+    private <T> T parseCached(WeatherHttpCache cache, WeatherHttpCache.Entry entry,
+            ResponseParser<T> parser) {
+        InputStream in = cache.openBody(entry);
+        if (in == null) {
+            return null;
+        }
+        try {
+            return parser.parse(in);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to parse cached response for " + entry.url, e);
+        } finally {
+            try {
+                in.close();
+            } catch (IOException ignored) {
+            }
         }
         return null;
     }
 
+    /**
+     * Hook for providers that need additional headers on their requests
+     * e.g. an identifying User-Agent
+     */
+    protected void addRequestHeaders(HttpRequest request) {
+    }
+
     public abstract WeatherInfo getCustomWeather(String id, boolean metric);
 
     public abstract WeatherInfo getLocationWeather(Location location, boolean metric);
@@ -22,7 +22,6 @@ public class AerisWeatherProvider extends AbstractWeatherProvider {
     private static final int FORECAST_DAYS = 5;
     private static final String SELECTION_LOCATION = "%s,%s";
     private static final String API_KEY = "YOUR_AERIES_API_KEY";
-    private static final String API_KEY_PREFERENCE = "custom_api_key";
 
 
     private static final String URL_LOCATION =
@@ -82,20 +81,16 @@ public class AerisWeatherProvider extends AbstractWeatherProvider {
 
     private WeatherInfo handleWeatherRequest(String selection, boolean metric) {
         String conditionUrl = String.format(Locale.US, URL_WEATHER, selection, getAPIKey());
-        String conditionResponse = retrieve(conditionUrl);
-        if (conditionResponse == null) {
-            return null;
-        }
-        log(TAG, "Condition URL = " + conditionUrl + " returning a response of " + conditionResponse);
-
         String forecastUrl = String.format(Locale.US, URL_FORECAST, selection, getAPIKey());
-        String forecastResponse = retrieve(forecastUrl);
-        if (forecastResponse == null) {
+        String[] responses = retrieveAll(conditionUrl, forecastUrl);
+        if (responses == null) {
             return null;
         }
+        String conditionResponse = responses[0];
+        String forecastResponse = responses[1];
+        log(TAG, "Condition URL = " + conditionUrl + " returning a response of " + conditionResponse);
         log(TAG, "Forcast URL = " + forecastUrl + " returning a response of " + forecastResponse);
 
-
         try {
             JSONObject conditions = new JSONObject(conditionResponse).optJSONObject("response");
 
@@ -404,7 +399,7 @@ public class AerisWeatherProvider extends AbstractWeatherProvider {
 
     private String getAPIKey() {
         String customKey = PreferenceManager.getDefaultSharedPreferences(mContext)
-                .getString(API_KEY_PREFERENCE, "");
+                .getString(Config.PREF_KEY_CUSTOM_API_KEY, "");
         if (TextUtils.isEmpty(customKey) && customKey.length()!= 86) {
             return mContext.getResources().getString(R.string.wug_api_key, API_KEY);
         } else {
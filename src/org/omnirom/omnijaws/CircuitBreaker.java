@@ -0,0 +1,205 @@
+/*
+ *  Copyright (C) 2015 The OmniROM Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.omnirom.omnijaws;
+
+import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+/**
+ * Failure tracking per weather provider so an unavailable service is
+ * not hammered with requests.
+ *
+ * A provider starts closed. After FAILURE_THRESHOLD failures in a row it
+ * opens and requests are refused for a backoff delay, then it is half
+ * open and one request is let through. Success closes it again, failure
+ * reopens it with a doubled delay. Delays use full jitter: a random
+ * value between 0 and min(MAX_DELAY_MS, BASE_DELAY_MS << n).
+ * The state is persisted so restarts do not reset it.
+ */
+class CircuitBreaker {
+    private static final String TAG = "WeatherService:CircuitBreaker";
+    private static final boolean DEBUG = false;
+
+    private static final String PREFS_NAME = "provider_health";
+
+    static final int STATE_CLOSED = 0;
+    static final int STATE_OPEN = 1;
+    static final int STATE_HALF_OPEN = 2;
+
+    private static final int FAILURE_THRESHOLD = 3;
+    private static final long BASE_DELAY_MS = 60L * 1000L;
+    private static final long MAX_DELAY_MS = 6L * 60L * 60L * 1000L;
+    private static final int MAX_SHIFT = 16;
+
+    private static CircuitBreaker sInstance;
+
+    private final SharedPreferences mPrefs;
+    private final Random mRandom = new Random();
+    // provider -> state, guarded by this
+    private final Map<String, Health> mHealth = new HashMap<>();
+
+    private static class Health {
+        int state;
+        int failures;
+        long openUntil;
+        // a half open probe is in flight, not persisted so a restart
+        // cannot leave the provider blocked
+        boolean probing;
+    }
+
+    static synchronized CircuitBreaker get(Context context) {
+        if (sInstance == null) {
+            sInstance = new CircuitBreaker(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private CircuitBreaker(Context context) {
+        mPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    static String getName(AbstractWeatherProvider provider) {
+        return provider.getClass().getSimpleName();
+    }
+
+    /**
+     * Like allowRequest() but does not claim the half open probe.
+     */
+    synchronized boolean canRequest(String provider) {
+        Health health = getHealth(provider);
+        if (health.state == STATE_OPEN) {
+            return System.currentTimeMillis() >= health.openUntil;
+        }
+        return health.state != STATE_HALF_OPEN || !health.probing;
+    }
+
+    /**
+     * A request that was allowed must be followed by onSuccess(),
+     * onFailure() or onCancelled().
+     *
+     * @return false if requests to the provider should not be made now
+     */
+    synchronized boolean allowRequest(String provider) {
+        Health health = getHealth(provider);
+        if (health.state == STATE_OPEN) {
+            if (System.currentTimeMillis() < health.openUntil) {
+                if (DEBUG) Log.d(TAG, provider + " open, refusing request");
+                return false;
+            }
+            health.state = STATE_HALF_OPEN;
+            store(provider, health);
+            Log.i(TAG, provider + " half open");
+        }
+        if (health.state == STATE_HALF_OPEN) {
+            if (health.probing) {
+                if (DEBUG) Log.d(TAG, provider + " half open, probe in flight");
+                return false;
+            }
+            health.probing = true;
+        }
+        return true;
+    }
+
+    synchronized void onSuccess(String provider) {
+        Health health = getHealth(provider);
+        health.probing = false;
+        if (health.state == STATE_CLOSED && health.failures == 0) {
+            return;
+        }
+        if (health.state != STATE_CLOSED) {
+            Log.i(TAG, provider + " closed");
+        }
+        health.state = STATE_CLOSED;
+        health.failures = 0;
+        health.openUntil = 0;
+        store(provider, health);
+    }
+
+    /**
+     * @return the delay after which the provider should be tried again
+     */
+    synchronized long onFailure(String provider) {
+        Health health = getHealth(provider);
+        health.probing = false;
+        health.failures++;
+        final long delay = getBackoffDelay(health.failures);
+        if (health.state == STATE_HALF_OPEN || health.failures >= FAILURE_THRESHOLD) {
+            health.state = STATE_OPEN;
+            health.openUntil = System.currentTimeMillis() + delay;
+            Log.w(TAG, provider + " open for " + delay / 1000 + "s after "
+                    + health.failures + " failures");
+        }
+        store(provider, health);
+        return delay;
+    }
+
+    /**
+     * The request was abandoned without a result, lets the next probe through.
+     */
+    synchronized void onCancelled(String provider) {
+        getHealth(provider).probing = false;
+    }
+
+    synchronized int getState(String provider) {
+        return getHealth(provider).state;
+    }
+
+    synchronized void dump(PrintWriter pw) {
+        pw.println("CircuitBreaker:");
+        for (String key : mPrefs.getAll().keySet()) {
+            if (key.endsWith(".state")) {
+                String provider = key.substring(0, key.length() - ".state".length());
+                Health health = getHealth(provider);
+                pw.println("  " + provider + " state=" + health.state + " failures="
+                        + health.failures + " openUntil=" + health.openUntil);
+            }
+        }
+    }
+
+    private long getBackoffDelay(int failures) {
+        final int shift = Math.min(failures - 1, MAX_SHIFT);
+        final long cap = Math.min(MAX_DELAY_MS, BASE_DELAY_MS << shift);
+        return (long) (mRandom.nextDouble() * cap);
+    }
+
+    private Health getHealth(String provider) {
+        Health health = mHealth.get(provider);
+        if (health == null) {
+            health = new Health();
+            health.state = mPrefs.getInt(provider + ".state", STATE_CLOSED);
+            health.failures = mPrefs.getInt(provider + ".failures", 0);
+            health.openUntil = mPrefs.getLong(provider + ".open_until", 0);
+            mHealth.put(provider, health);
+        }
+        return health;
+    }
+
+    private void store(String provider, Health health) {
+        mPrefs.edit()
+                .putInt(provider + ".state", health.state)
+                .putInt(provider + ".failures", health.failures)
+                .putLong(provider + ".open_until", health.openUntil)
+                .apply();
+    }
+}
@@ -17,6 +17,11 @@
  */
 package org.omnirom.omnijaws;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
 import android.Manifest;
 import android.content.Context;
 import android.content.SharedPreferences;
@@ -36,193 +41,264 @@ public class Config {
     public static final String PREF_KEY_ICON_PACK = "icon_pack";
     public static final String PREF_KEY_LAST_ALARM = "last_alarm";
     public static final String PREF_KEY_UPDATE_ERROR = "update_error";
+    public static final String PREF_KEY_OWM_API_KEY = "custom_owm_api_key";
+    public static final String PREF_KEY_CUSTOM_API_KEY = "custom_api_key";
+    public static final String PREF_KEY_PROVIDER_CHAIN = "provider_chain";
+    public static final String PREF_KEY_HEDGE_REQUESTS = "hedge_requests";
+
+    private static final String DEFAULT_PROVIDER = "0";
+    private static final int DEFAULT_UPDATE_INTERVAL = 2;
+
+    /**
+     * Immutable typed view of the settings. A new instance is published
+     * whenever a preference changes, so readers only touch plain fields.
+     */
+    public static final class Snapshot {
+        public final String provider;
+        public final String providerId;
+        public final boolean metric;
+        public final boolean customLocation;
+        public final String locationId;
+        public final String locationName;
+        public final boolean enabled;
+        public final int updateInterval;
+        public final String iconPack;
+        // provider values to try in order, the selected provider first
+        public final List<String> providerChain;
+        // race the next provider of the chain against a slow one
+        public final boolean hedgeRequests;
+
+        private Snapshot(SharedPreferences prefs) {
+            provider = prefs.getString(PREF_KEY_PROVIDER, DEFAULT_PROVIDER);
+            providerId = getProviderName(provider);
+            metric = prefs.getString(PREF_KEY_UNITS, "0").equals("0");
+            customLocation = prefs.getBoolean(PREF_KEY_CUSTOM_LOCATION, false);
+            locationId = prefs.getString(PREF_KEY_LOCATION_ID, null);
+            locationName = prefs.getString(PREF_KEY_LOCATION_NAME, null);
+            enabled = prefs.getBoolean(PREF_KEY_ENABLE, true);
+            updateInterval = parseUpdateInterval(prefs.getString(PREF_KEY_UPDATE_INTERVAL,
+                    String.valueOf(DEFAULT_UPDATE_INTERVAL)));
+            iconPack = prefs.getString(PREF_KEY_ICON_PACK, null);
+            providerChain = parseProviderChain(provider,
+                    prefs.getString(PREF_KEY_PROVIDER_CHAIN, sDefaultProviderChain));
+            hedgeRequests = prefs.getBoolean(PREF_KEY_HEDGE_REQUESTS, false);
+        }
+    }
 
-    public static AbstractWeatherProvider getProvider(Context context) {
-        SharedPreferences prefs = PreferenceManager
-                .getDefaultSharedPreferences(context);
+    private static volatile Snapshot sSnapshot;
+    // providers are built once and shared, see getProvider()
+    private static final Map<String, AbstractWeatherProvider> sProviders = new HashMap<>();
+    private static String sDefaultProviderChain;
+    // the preferences only keep a weak reference to their listeners
+    private static SharedPreferences sPrefs;
+    private static final SharedPreferences.OnSharedPreferenceChangeListener sPrefsListener =
+            new SharedPreferences.OnSharedPreferenceChangeListener() {
+        @Override
+        public void onSharedPreferenceChanged(SharedPreferences prefs, String key) {
+            refresh();
+            if (PREF_KEY_OWM_API_KEY.equals(key) || PREF_KEY_CUSTOM_API_KEY.equals(key)) {
+                invalidateProvider();
+            }
+        }
+    };
+
+    public static Snapshot get(Context context) {
+        Snapshot snapshot = sSnapshot;
+        if (snapshot == null) {
+            snapshot = init(context);
+        }
+        return snapshot;
+    }
+
+    private static synchronized Snapshot init(Context context) {
+        if (sSnapshot == null) {
+            sDefaultProviderChain = context.getResources().getString(R.string.default_provider_chain);
+            sPrefs = PreferenceManager.getDefaultSharedPreferences(context.getApplicationContext());
+            sPrefs.registerOnSharedPreferenceChangeListener(sPrefsListener);
+            sSnapshot = new Snapshot(sPrefs);
+        }
+        return sSnapshot;
+    }
+
+    private static synchronized void refresh() {
+        if (sPrefs != null) {
+            sSnapshot = new Snapshot(sPrefs);
+        }
+    }
+
+    // change listeners are called asynchronously, so writers publish right away
+    private static boolean commit(SharedPreferences.Editor editor) {
+        boolean result = editor.commit();
+        refresh();
+        return result;
+    }
+
+    private static SharedPreferences.Editor edit(Context context) {
+        get(context);
+        return sPrefs.edit();
+    }
 
-        switch (prefs.getString(PREF_KEY_PROVIDER, "0"))
+    private static int parseUpdateInterval(String value) {
+        try {
+            return Integer.valueOf(value);
+        } catch (NumberFormatException e) {
+            return DEFAULT_UPDATE_INTERVAL;
+        }
+    }
+
+    private static List<String> parseProviderChain(String provider, String chain) {
+        List<String> providers = new ArrayList<>();
+        providers.add(provider);
+        if (chain != null) {
+            for (String value : chain.split(",")) {
+                value = value.trim();
+                if (!value.isEmpty() && !providers.contains(value)) {
+                    providers.add(value);
+                }
+            }
+        }
+        return providers;
+    }
+
+    static String getProviderName(String provider) {
+        switch (provider)
         {
             case "0":
-                return new OpenWeatherMapProvider(context);
+                return "OpenWeatherMap";
             case "1":
-                return new METNorwayProvider(context);
+                return "MET Norway";
             case "2":
-                return new WeatherUndergroundProvider(context);
+                return "Weather Underground";
             case "3":
-                return new AerisWeatherProvider(context);
+                return "Aeris Weather";
             default:
-                return new OpenWeatherMapProvider(context);
+                return "OpenWeatherMap";
         }
     }
 
-    public static String getProviderId(Context context) {
-        SharedPreferences prefs = PreferenceManager
-                .getDefaultSharedPreferences(context);
+    /**
+     * Returns the shared instance of the selected provider. It is only
+     * rebuilt when the provider or an API key setting changes.
+     */
+    public static AbstractWeatherProvider getProvider(Context context) {
+        return getProvider(context, get(context).provider);
+    }
 
-        String provider = prefs.getString(PREF_KEY_PROVIDER, "0");
+    /**
+     * Returns the shared instance of the provider with the given
+     * provider preference value.
+     */
+    static synchronized AbstractWeatherProvider getProvider(Context context, String provider) {
+        AbstractWeatherProvider instance = sProviders.get(provider);
+        if (instance == null) {
+            instance = createProvider(context.getApplicationContext(), provider);
+            sProviders.put(provider, instance);
+        }
+        return instance;
+    }
+
+    private static synchronized void invalidateProvider() {
+        sProviders.clear();
+    }
+
+    private static AbstractWeatherProvider createProvider(Context context, String provider) {
         switch (provider)
         {
             case "0":
-                return "OpenWeatherMap";
+                return new OpenWeatherMapProvider(context);
             case "1":
-                return "MET Norway";
+                return new METNorwayProvider(context);
             case "2":
-                return "Weather Underground";
+                return new WeatherUndergroundProvider(context);
             case "3":
-                return "Aeris Weather";
+                return new AerisWeatherProvider(context);
             default:
-                return "OpenWeatherMap";
+                return new OpenWeatherMapProvider(context);
         }
     }
 
-    public static boolean isMetric(Context context) {
-        SharedPreferences prefs = PreferenceManager
-                .getDefaultSharedPreferences(context);
+    public static String getProviderId(Context context) {
+        return get(context).providerId;
+    }
 
-        return prefs.getString(PREF_KEY_UNITS, "0").equals("0");
+    public static boolean isMetric(Context context) {
+        return get(context).metric;
     }
 
     public static boolean isCustomLocation(Context context) {
-        SharedPreferences prefs = PreferenceManager
-                .getDefaultSharedPreferences(context);
-
-        return prefs.getBoolean(PREF_KEY_CUSTOM_LOCATION, false);
+        return get(context).customLocation;
     }
 
     public static String getLocationId(Context context) {
-        SharedPreferences prefs = PreferenceManager
-                .getDefaultSharedPreferences(context);
-
-        return prefs.getString(PREF_KEY_LOCATION_ID, null);
+        return get(context).locationId;
     }
 
     public static void setLocationId(Context context, String id) {
-        SharedPreferences prefs = PreferenceManager
-                .getDefaultSharedPreferences(context);
-
-        prefs.edit().putString(PREF_KEY_LOCATION_ID, id).commit();
+        commit(edit(context).putString(PREF_KEY_LOCATION_ID, id));
     }
 
     public static String getLocationName(Context context) {
-        SharedPreferences prefs = PreferenceManager
-                .getDefaultSharedPreferences(context);
-
-        return prefs.getString(PREF_KEY_LOCATION_NAME, null);
+        return get(context).locationName;
     }
 
     public static void setLocationName(Context context, String name) {
-        SharedPreferences prefs = PreferenceManager
-                .getDefaultSharedPreferences(context);
-
-        prefs.edit().putString(PREF_KEY_LOCATION_NAME, name).commit();
+        commit(edit(context).putString(PREF_KEY_LOCATION_NAME, name));
     }
 
     public static WeatherInfo getWeatherData(Context context) {
-        SharedPreferences prefs = PreferenceManager
-                .getDefaultSharedPreferences(context);
-
-        String str = prefs.getString(PREF_KEY_WEATHER_DATA, null);
-        if (str != null) {
-            WeatherInfo data = WeatherInfo.fromSerializedString(context, str);
-            return data;
-        }
-        return null;
+        return WeatherStore.get(context).getWeatherData();
     }
 
     public static void setWeatherData(Context context, WeatherInfo data) {
-        SharedPreferences prefs = PreferenceManager
-                .getDefaultSharedPreferences(context);
-
-        prefs.edit().putString(PREF_KEY_WEATHER_DATA, data.toSerializedString()).commit();
-        prefs.edit().putLong(PREF_KEY_LAST_UPDATE, System.currentTimeMillis()).commit();
+        WeatherStore.get(context).setWeatherData(data, System.currentTimeMillis());
     }
 
     public static void clearWeatherData(Context context) {
-        SharedPreferences prefs = PreferenceManager
-                .getDefaultSharedPreferences(context);
-
-        prefs.edit().remove(PREF_KEY_WEATHER_DATA).commit();
-        prefs.edit().remove(PREF_KEY_LAST_UPDATE).commit();
+        WeatherStore.get(context).clearWeatherData();
     }
 
     public static long getLastUpdateTime(Context context) {
-        SharedPreferences prefs = PreferenceManager
-                .getDefaultSharedPreferences(context);
-
-        return prefs.getLong(PREF_KEY_LAST_UPDATE, 0);
+        return WeatherStore.get(context).getLastUpdateTime();
     }
 
     public static void clearLastUpdateTime(Context context) {
-        SharedPreferences prefs = PreferenceManager
-                .getDefaultSharedPreferences(context);
-
-        prefs.edit().putLong(PREF_KEY_LAST_UPDATE, 0).commit();
-        prefs.edit().putLong(PREF_KEY_LAST_ALARM, 0).commit();
+        WeatherStore.get(context).clearUpdateTimes();
     }
 
     public static boolean isEnabled(Context context) {
-        SharedPreferences prefs = PreferenceManager
-                .getDefaultSharedPreferences(context);
-
-        return prefs.getBoolean(PREF_KEY_ENABLE, true);
+        return get(context).enabled;
     }
 
     public static boolean setEnabled(Context context, boolean value) {
-        SharedPreferences prefs = PreferenceManager
-                .getDefaultSharedPreferences(context);
-
-        return prefs.edit().putBoolean(PREF_KEY_ENABLE, value).commit();
+        return commit(edit(context).putBoolean(PREF_KEY_ENABLE, value));
     }
 
     public static int getUpdateInterval(Context context) {
-        SharedPreferences prefs = PreferenceManager
-                .getDefaultSharedPreferences(context);
-
-        String valueString = prefs.getString(PREF_KEY_UPDATE_INTERVAL, "2");
-        return Integer.valueOf(valueString);
+        return get(context).updateInterval;
     }
 
     public static String getIconPack(Context context) {
-        SharedPreferences prefs = PreferenceManager
-                .getDefaultSharedPreferences(context);
-
-        return prefs.getString(PREF_KEY_ICON_PACK, null);
+        return get(context).iconPack;
     }
 
     public static void setIconPack(Context context, String value) {
-        SharedPreferences prefs = PreferenceManager
-                .getDefaultSharedPreferences(context);
-
-        prefs.edit().putString(PREF_KEY_ICON_PACK, value).commit();
+        commit(edit(context).putString(PREF_KEY_ICON_PACK, value));
     }
 
     public static long getLastAlarmTime(Context context) {
-        SharedPreferences prefs = PreferenceManager
-                .getDefaultSharedPreferences(context);
-
-        return prefs.getLong(PREF_KEY_LAST_ALARM, 0);
+        return WeatherStore.get(context).getLastAlarmTime();
     }
 
     public static void setLastAlarmTime(Context context) {
-        SharedPreferences prefs = PreferenceManager
-                .getDefaultSharedPreferences(context);
-
-        prefs.edit().putLong(PREF_KEY_LAST_ALARM, System.currentTimeMillis()).commit();
+        WeatherStore.get(context).setLastAlarmTime(System.currentTimeMillis());
     }
 
     public static boolean isUpdateError(Context context) {
-        SharedPreferences prefs = PreferenceManager
-                .getDefaultSharedPreferences(context);
-
-        return prefs.getBoolean(PREF_KEY_UPDATE_ERROR, false);
+        return WeatherStore.get(context).isUpdateError();
     }
 
     public static void setUpdateError(Context context, boolean value) {
-        SharedPreferences prefs = PreferenceManager
-                .getDefaultSharedPreferences(context);
-
-        prefs.edit().putBoolean(PREF_KEY_UPDATE_ERROR, value).commit();
+        WeatherStore.get(context).setUpdateError(value);
     }
 
     public static boolean isSetupDone(Context context) {
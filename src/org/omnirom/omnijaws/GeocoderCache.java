@@ -0,0 +1,306 @@
+/*
+ *  Copyright (C) 2015 The OmniROM Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.omnirom.omnijaws;
+
+import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.location.Address;
+import android.location.Geocoder;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Persistent cache of reverse geocoder lookups.
+ *
+ * Locations are quantised to a geohash cell so small position changes
+ * resolve to the same entry. Entries expire after a week and the least
+ * recently used ones are evicted once the cache is full.
+ */
+class GeocoderCache {
+    private static final String TAG = "WeatherService:GeocoderCache";
+    private static final boolean DEBUG = false;
+
+    private static final String PREFS_NAME = "geocoder_cache";
+    // about 1.2km x 0.6km
+    private static final int GEOHASH_PRECISION = 6;
+    private static final int MAX_ENTRIES = 32;
+    private static final long TTL_MS = 7L * 24L * 60L * 60L * 1000L;
+
+    private static final char[] BASE32 = "0123456789bcdefghjkmnpqrstuvwxyz".toCharArray();
+
+    private static GeocoderCache sInstance;
+
+    private final Context mContext;
+    private final SharedPreferences mPrefs;
+    // key -> entry, in access order
+    private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private final AtomicInteger mHitCount = new AtomicInteger();
+    private final AtomicInteger mMissCount = new AtomicInteger();
+    private final AtomicLong mHitTimeNanos = new AtomicLong();
+    private final AtomicLong mMissTimeNanos = new AtomicLong();
+
+    private static class Entry {
+        final long stored;
+        long lastUsed;
+        final String locality;
+        // lastUsed changed since the entry was persisted
+        boolean dirty;
+
+        Entry(long stored, long lastUsed, String locality) {
+            this.stored = stored;
+            this.lastUsed = lastUsed;
+            this.locality = locality;
+        }
+
+        String encode() {
+            return stored + ":" + lastUsed + ":" + locality;
+        }
+
+        static Entry decode(String value) {
+            int first = value.indexOf(':');
+            int second = first < 0 ? -1 : value.indexOf(':', first + 1);
+            if (second < 0) {
+                return null;
+            }
+            try {
+                return new Entry(Long.parseLong(value.substring(0, first)),
+                        Long.parseLong(value.substring(first + 1, second)),
+                        value.substring(second + 1));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+    }
+
+    static synchronized GeocoderCache get(Context context) {
+        if (sInstance == null) {
+            sInstance = new GeocoderCache(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private GeocoderCache(Context context) {
+        mContext = context;
+        mPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        loadEntries();
+    }
+
+    private void loadEntries() {
+        final long now = System.currentTimeMillis();
+        List<Map.Entry<String, Entry>> loaded = new ArrayList<>();
+        SharedPreferences.Editor editor = null;
+        for (Map.Entry<String, ?> pref : mPrefs.getAll().entrySet()) {
+            Entry entry = pref.getValue() instanceof String ? Entry.decode((String) pref.getValue()) : null;
+            if (entry == null || now - entry.stored > TTL_MS) {
+                if (editor == null) {
+                    editor = mPrefs.edit();
+                }
+                editor.remove(pref.getKey());
+                continue;
+            }
+            loaded.add(new AbstractMap.SimpleEntry<>(pref.getKey(), entry));
+        }
+        // oldest access first so the LinkedHashMap ends up in LRU order
+        Collections.sort(loaded, new Comparator<Map.Entry<String, Entry>>() {
+            @Override
+            public int compare(Map.Entry<String, Entry> lhs, Map.Entry<String, Entry> rhs) {
+                return Long.compare(lhs.getValue().lastUsed, rhs.getValue().lastUsed);
+            }
+        });
+        for (Map.Entry<String, Entry> e : loaded) {
+            mEntries.put(e.getKey(), e.getValue());
+        }
+        if (editor != null) {
+            editor.apply();
+        }
+    }
+
+    /**
+     * Returns the locality of the given position, from the cache if the
+     * position falls into a cell that has been resolved before.
+     * Returns null if the geocoder could not resolve the position.
+     */
+    String getLocality(double latitude, double longitude) {
+        final long start = SystemClock.elapsedRealtimeNanos();
+        final Locale locale = Locale.getDefault();
+        final String key = encodeGeohash(latitude, longitude, GEOHASH_PRECISION)
+                + ":" + locale.toLanguageTag();
+
+        String locality = lookup(key);
+        if (locality != null) {
+            mHitCount.incrementAndGet();
+            mHitTimeNanos.addAndGet(SystemClock.elapsedRealtimeNanos() - start);
+            if (DEBUG) Log.d(TAG, "hit " + key + " " + this);
+            return locality;
+        }
+
+        locality = resolve(latitude, longitude, locale);
+        mMissCount.incrementAndGet();
+        mMissTimeNanos.addAndGet(SystemClock.elapsedRealtimeNanos() - start);
+        if (locality != null) {
+            store(key, locality);
+        }
+        if (DEBUG) Log.d(TAG, "miss " + key + " " + this);
+        return locality;
+    }
+
+    private synchronized String lookup(String key) {
+        Entry entry = mEntries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        final long now = System.currentTimeMillis();
+        if (now - entry.stored > TTL_MS) {
+            mEntries.remove(key);
+            mPrefs.edit().remove(key).apply();
+            return null;
+        }
+        // recency is persisted with the next store() only, a hit must not
+        // cost a disk write
+        entry.lastUsed = now;
+        entry.dirty = true;
+        return entry.locality;
+    }
+
+    private synchronized void store(String key, String locality) {
+        final long now = System.currentTimeMillis();
+        Entry entry = new Entry(now, now, locality);
+        mEntries.put(key, entry);
+        SharedPreferences.Editor editor = mPrefs.edit();
+        editor.putString(key, entry.encode());
+        Iterator<Map.Entry<String, Entry>> it = mEntries.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Entry> e = it.next();
+            if (mEntries.size() > MAX_ENTRIES) {
+                editor.remove(e.getKey());
+                it.remove();
+            } else if (e.getValue().dirty) {
+                editor.putString(e.getKey(), e.getValue().encode());
+                e.getValue().dirty = false;
+            }
+        }
+        editor.apply();
+    }
+
+    private String resolve(double latitude, double longitude, Locale locale) {
+        Geocoder geocoder = new Geocoder(mContext, locale);
+        try {
+            List<Address> addresses = geocoder.getFromLocation(latitude, longitude, 1);
+            if (addresses != null && addresses.size() > 0) {
+                return addresses.get(0).getLocality();
+            }
+            Log.w(TAG, "No city data");
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to retrieve city", e);
+        }
+        return null;
+    }
+
+    int getHitCount() {
+        return mHitCount.get();
+    }
+
+    int getMissCount() {
+        return mMissCount.get();
+    }
+
+    float getHitRate() {
+        final int hits = getHitCount();
+        final int total = hits + getMissCount();
+        return total == 0 ? 0f : (float) hits / total;
+    }
+
+    /**
+     * @return average lookup time in ms of cache hits
+     */
+    float getAverageHitTimeMs() {
+        final int hits = getHitCount();
+        return hits == 0 ? 0f : mHitTimeNanos.get() / (hits * 1000000f);
+    }
+
+    /**
+     * @return average lookup time in ms of cache misses, including the geocoder call
+     */
+    float getAverageMissTimeMs() {
+        final int misses = getMissCount();
+        return misses == 0 ? 0f : mMissTimeNanos.get() / (misses * 1000000f);
+    }
+
+    synchronized int size() {
+        return mEntries.size();
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US,
+                "GeocoderCache hits = %d misses = %d hitRate = %.2f hitTime = %.1fms missTime = %.1fms size = %d",
+                getHitCount(), getMissCount(), getHitRate(), getAverageHitTimeMs(),
+                getAverageMissTimeMs(), size());
+    }
+
+    static String encodeGeohash(double latitude, double longitude, int precision) {
+        double minLat = -90, maxLat = 90;
+        double minLon = -180, maxLon = 180;
+        StringBuilder hash = new StringBuilder(precision);
+        boolean evenBit = true;
+        int bit = 0;
+        int index = 0;
+        while (hash.length() < precision) {
+            if (evenBit) {
+                double mid = (minLon + maxLon) / 2;
+                if (longitude >= mid) {
+                    index = (index << 1) | 1;
+                    minLon = mid;
+                } else {
+                    index <<= 1;
+                    maxLon = mid;
+                }
+            } else {
+                double mid = (minLat + maxLat) / 2;
+                if (latitude >= mid) {
+                    index = (index << 1) | 1;
+                    minLat = mid;
+                } else {
+                    index <<= 1;
+                    maxLat = mid;
+                }
+            }
+            evenBit = !evenBit;
+            if (++bit == 5) {
+                hash.append(BASE32[index]);
+                bit = 0;
+                index = 0;
+            }
+        }
+        return hash.toString();
+    }
+}
@@ -0,0 +1,243 @@
+/*
+ *  Copyright (C) 2015 The OmniROM Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.omnirom.omnijaws;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.location.Location;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Hedged location requests: if the primary provider has not answered
+ * within its observed p90 latency, the secondary is asked as well and
+ * the first valid answer wins. The loser is cancelled through its
+ * RequestScope. Hedges are limited to MAX_HEDGE_PERCENT of requests.
+ */
+class Hedger {
+    private static final String TAG = "WeatherService:Hedger";
+    private static final boolean DEBUG = false;
+
+    private static final int THREADS = 4;
+    private static final long THREAD_KEEP_ALIVE_SEC = 30;
+    private static final int LATENCY_SAMPLES = 32;
+    private static final int MIN_LATENCY_SAMPLES = 5;
+    private static final int MAX_HEDGE_PERCENT = 10;
+
+    private static Hedger sInstance;
+
+    // separate from the fetch executor, a hedge must not wait behind the requests it races
+    private final ThreadPoolExecutor mExecutor;
+    // provider -> recent latencies, guarded by this
+    private final Map<String, LatencyRing> mLatencies = new HashMap<>();
+    private int mRequestCount;
+    private int mHedgeCount;
+    private int mHedgeWinCount;
+
+    /**
+     * The last LATENCY_SAMPLES latencies of successful network requests.
+     */
+    private static class LatencyRing {
+        final long[] samples = new long[LATENCY_SAMPLES];
+        int count;
+        int next;
+
+        void add(long latency) {
+            samples[next] = latency;
+            next = (next + 1) % samples.length;
+            count = Math.min(count + 1, samples.length);
+        }
+
+        long getP90() {
+            if (count < MIN_LATENCY_SAMPLES) {
+                return -1;
+            }
+            long[] sorted = Arrays.copyOf(samples, count);
+            Arrays.sort(sorted);
+            return sorted[(int) Math.ceil(count * 0.9) - 1];
+        }
+    }
+
+    private class Attempt implements Callable<WeatherInfo> {
+        final ProviderChain chain;
+        final String provider;
+        final Location location;
+        final RequestScope scope = new RequestScope();
+
+        Attempt(ProviderChain chain, String provider, Location location) {
+            this.chain = chain;
+            this.provider = provider;
+            this.location = location;
+        }
+
+        @Override
+        public WeatherInfo call() {
+            final long start = SystemClock.elapsedRealtime();
+            scope.enter();
+            try {
+                WeatherInfo w = chain.fetchLocationWeather(provider, location);
+                // cache hits are near 0ms and would drag the p90 down
+                if (w != null && !scope.isCancelled() && scope.hasNetworkRequests()) {
+                    addLatency(provider, SystemClock.elapsedRealtime() - start);
+                }
+                return w;
+            } finally {
+                scope.exit();
+            }
+        }
+    }
+
+    static synchronized Hedger get() {
+        if (sInstance == null) {
+            sInstance = new Hedger();
+        }
+        return sInstance;
+    }
+
+    private Hedger() {
+        mExecutor = new ThreadPoolExecutor(THREADS, THREADS,
+                THREAD_KEEP_ALIVE_SEC, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        return new Thread(r, "WeatherHedge #" + mCount.incrementAndGet());
+                    }
+                });
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Asks the primary and, if it is slow, the secondary provider.
+     * Waits at most timeout ms for an answer.
+     *
+     * @return the first valid answer, null if none came in time
+     */
+    WeatherInfo fetch(ProviderChain chain, String primary, String secondary,
+            Location location, long timeout) {
+        final long deadline = SystemClock.elapsedRealtime() + timeout;
+        final CompletionService<WeatherInfo> completion = new ExecutorCompletionService<>(mExecutor);
+        final Attempt primaryAttempt = new Attempt(chain, primary, location);
+        final Future<WeatherInfo> primaryFuture = completion.submit(primaryAttempt);
+        Attempt secondaryAttempt = null;
+        Future<WeatherInfo> secondaryFuture = null;
+        try {
+            long hedgeDelay = getHedgeDelay(primary);
+            if (hedgeDelay >= 0) {
+                Future<WeatherInfo> done = completion.poll(
+                        Math.min(hedgeDelay, timeout), TimeUnit.MILLISECONDS);
+                if (done != null) {
+                    // answered in time, or failed fast and the chain fails over
+                    return done.get();
+                }
+                if (acquireHedge()) {
+                    Log.i(TAG, primary + " slower than " + hedgeDelay + "ms, hedging with "
+                            + secondary);
+                    secondaryAttempt = new Attempt(chain, secondary, location);
+                    secondaryFuture = completion.submit(secondaryAttempt);
+                }
+            }
+
+            final int running = secondaryFuture != null ? 2 : 1;
+            for (int i = 0; i < running; i++) {
+                final long remaining = deadline - SystemClock.elapsedRealtime();
+                Future<WeatherInfo> done = completion.poll(remaining, TimeUnit.MILLISECONDS);
+                if (done == null) {
+                    Log.w(TAG, "No answer within " + timeout + "ms");
+                    return null;
+                }
+                WeatherInfo w = done.get();
+                if (w != null) {
+                    if (done == secondaryFuture) {
+                        recordHedgeWin();
+                    }
+                    return w;
+                }
+            }
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            Log.e(TAG, "Hedged fetch failed", e.getCause());
+            return null;
+        } finally {
+            // no-ops for attempts that already finished
+            primaryAttempt.scope.cancel();
+            primaryFuture.cancel(true);
+            if (secondaryAttempt != null) {
+                secondaryAttempt.scope.cancel();
+                secondaryFuture.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * @return ms to wait for the primary before hedging, -1 to never hedge
+     */
+    private synchronized long getHedgeDelay(String provider) {
+        mRequestCount++;
+        LatencyRing ring = mLatencies.get(provider);
+        return ring != null ? ring.getP90() : -1;
+    }
+
+    private synchronized boolean acquireHedge() {
+        if ((mHedgeCount + 1) * 100 > mRequestCount * MAX_HEDGE_PERCENT) {
+            if (DEBUG) Log.d(TAG, "Hedge budget used up");
+            return false;
+        }
+        mHedgeCount++;
+        return true;
+    }
+
+    private synchronized void recordHedgeWin() {
+        mHedgeWinCount++;
+    }
+
+    private synchronized void addLatency(String provider, long latency) {
+        LatencyRing ring = mLatencies.get(provider);
+        if (ring == null) {
+            ring = new LatencyRing();
+            mLatencies.put(provider, ring);
+        }
+        ring.add(latency);
+    }
+
+    synchronized void dump(PrintWriter pw) {
+        pw.println("Hedger:");
+        pw.println("  requests=" + mRequestCount + " hedges=" + mHedgeCount
+                + " hedgeWins=" + mHedgeWinCount);
+        for (Map.Entry<String, LatencyRing> entry : mLatencies.entrySet()) {
+            pw.println("  " + entry.getKey() + " p90=" + entry.getValue().getP90() + "ms");
+        }
+    }
+}
@@ -3,24 +3,23 @@
 package org.omnirom.omnijaws;
 
 import android.content.Context;
-import android.location.Address;
-import android.location.Geocoder;
 import android.location.Location;
 import android.net.Uri;
+import android.util.JsonReader;
 import android.util.Log;
+import android.util.MalformedJsonException;
 import android.text.TextUtils;
 
-import org.apache.http.client.HttpClient;
-import org.apache.http.params.CoreProtocolPNames;
+import org.apache.http.HttpRequest;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.omnirom.omnijaws.WeatherInfo.DayForecast;
 
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.Calendar;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
@@ -28,13 +27,6 @@ import java.util.Locale;
 import java.io.IOException;
 import java.util.TimeZone;
 
-import org.apache.http.HttpEntity;
-import org.apache.http.HttpResponse;
-import org.apache.http.HttpStatus;
-import org.apache.http.client.methods.HttpGet;
-import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.util.EntityUtils;
-
 public class METNorwayProvider extends AbstractWeatherProvider {
     private static final String TAG = "METNorwayProvider";
 
@@ -44,14 +36,13 @@ public class METNorwayProvider extends AbstractWeatherProvider {
             "lat=%f&lon=%f";
     private static final String URL_PLACES =
             "http://api.geonames.org/searchJSON?q=%s&lang=%s&username=omnijaws&isNameRequired=true";
+    private static final String USER_AGENT = "OmniJawsApp/1.0";
 
-    private static final SimpleDateFormat gmt0Format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'", Locale.US);
-    private static final SimpleDateFormat userTimeZoneFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'", Locale.US);
-    private static final SimpleDateFormat dayFormat = new SimpleDateFormat("yyyy-MM-dd", Locale.US);
+    private static final long HOUR_MS = 60L * 60L * 1000L;
+    private static final long DAY_MS = 24L * HOUR_MS;
 
     public METNorwayProvider(Context context) {
         super(context);
-        initTimeZoneFormat();
     }
 
     public WeatherInfo getLocationWeather(Location location, boolean metric) {
@@ -100,168 +91,351 @@ public class METNorwayProvider extends AbstractWeatherProvider {
 
     private WeatherInfo getAllWeather(String coordinates, boolean metric) {
         String url = URL_WEATHER + coordinates;
-        String response = retrieve(url);
-        if (response == null) {
+        Timeseries timeseries = retrieve(url, new ResponseParser<Timeseries>() {
+            @Override
+            public Timeseries parse(InputStream in) throws IOException {
+                return parseTimeseries(in);
+            }
+        });
+        if (timeseries == null) {
+            Log.w(TAG, "Received no weather data (coordinates = " + coordinates + ")");
             return null;
         }
-        log(TAG, "URL = " + url + " returning a response of " + response);
+        log(TAG, "URL = " + url + " returning " + timeseries.mEntryCount + " timeseries entries");
 
-        try {
-            JSONArray timeseries = new JSONObject(response).getJSONObject("properties").getJSONArray("timeseries");
-            JSONObject weather = timeseries.getJSONObject(0).getJSONObject("data").getJSONObject("instant").getJSONObject("details");
+        double windSpeed = timeseries.mWindSpeed;
+        if (metric) {
+            windSpeed *= 3.6;
+        }
 
-            double windSpeed = weather.getDouble("wind_speed");
-            if (metric) {
-                windSpeed *= 3.6;
-            }
+        String city = getNameLocality(coordinates);
+        if (TextUtils.isEmpty(city)) {
+            city = mContext.getResources().getString(R.string.omnijaws_city_unkown);
+        }
 
-            String symbolCode = timeseries.getJSONObject(0).getJSONObject("data").getJSONObject("next_1_hours").getJSONObject("summary").getString("symbol_code");
+        WeatherInfo w = new WeatherInfo(mContext,
+                /* id */ coordinates,
+                /* cityId */ city,
+                /* condition */ timeseries.mSymbolCode,
+                /* conditionCode */ arrayWeatherIconToCode[getPriorityCondition(timeseries.mSymbolCode)],
+                /* temperature */ convertTemperature(timeseries.mTemperature, metric),
+                /* humidity */ (float) timeseries.mHumidity,
+                /* wind */ (float) windSpeed,
+                /* windDir */ (int) timeseries.mWindDirection,
+                metric,
+                timeseries.buildForecasts(metric),
+                System.currentTimeMillis());
+
+        log(TAG, "Weather updated: " + w);
+        return w;
+    }
 
-            String city = getNameLocality(coordinates);
-            if (TextUtils.isEmpty(city)) {
-                city = mContext.getResources().getString(R.string.omnijaws_city_unkown);
+    /**
+     * Single pass over the locationforecast response. Every timeseries entry
+     * is folded into the current conditions or its day as soon as it is read.
+     */
+    private Timeseries parseTimeseries(InputStream in) throws IOException {
+        Timeseries timeseries = new Timeseries();
+        TimeseriesEntry entry = new TimeseriesEntry();
+        JsonReader reader = new JsonReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+        try {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (!"properties".equals(reader.nextName())) {
+                    reader.skipValue();
+                    continue;
+                }
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    if (!"timeseries".equals(reader.nextName())) {
+                        reader.skipValue();
+                        continue;
+                    }
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        readTimeseriesEntry(reader, entry);
+                        timeseries.add(entry);
+                    }
+                    reader.endArray();
+                }
+                reader.endObject();
             }
-
-            WeatherInfo w = new WeatherInfo(mContext,
-                    /* id */ coordinates,
-                    /* cityId */ city,
-                    /* condition */ symbolCode,
-                    /* conditionCode */ arrayWeatherIconToCode[getPriorityCondition(symbolCode)],
-                    /* temperature */ convertTemperature(weather.getDouble("air_temperature"), metric),
-                    /* humidity */ (float) weather.getDouble("relative_humidity"),
-                    /* wind */ (float) windSpeed,
-                    /* windDir */ (int) weather.getDouble("wind_from_direction"),
-                    metric,
-                    parseForecasts(timeseries, metric),
-                    System.currentTimeMillis());
-
-            log(TAG, "Weather updated: " + w);
-            return w;
-        } catch (JSONException e) {
-            Log.w(TAG, "Received malformed weather data (coordinates = " + coordinates + ")", e);
+            reader.endObject();
+        } catch (IllegalStateException | NumberFormatException | MalformedJsonException e) {
+            Log.w(TAG, "Received malformed weather data", e);
+            return null;
         }
+        if (!timeseries.isValid()) {
+            Log.w(TAG, "Received incomplete weather data");
+            return null;
+        }
+        return timeseries;
+    }
 
-        return null;
+    private static void readTimeseriesEntry(JsonReader reader, TimeseriesEntry entry) throws IOException {
+        entry.reset();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "time":
+                    entry.time = reader.nextString();
+                    break;
+                case "data":
+                    readEntryData(reader, entry);
+                    break;
+                default:
+                    reader.skipValue();
+                    break;
+            }
+        }
+        reader.endObject();
     }
 
-    private ArrayList<DayForecast> parseForecasts(JSONArray timeseries, boolean metric) throws JSONException {
-        ArrayList<DayForecast> result = new ArrayList<>(5);
-        int count = timeseries.length();
+    private static void readEntryData(JsonReader reader, TimeseriesEntry entry) throws IOException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "instant":
+                    readInstantDetails(reader, entry);
+                    break;
+                case "next_1_hours":
+                    entry.nextHourSymbol = readSymbolCode(reader);
+                    break;
+                case "next_6_hours":
+                    entry.nextSixHoursSymbol = readSymbolCode(reader);
+                    break;
+                default:
+                    reader.skipValue();
+                    break;
+            }
+        }
+        reader.endObject();
+    }
 
-        if (count == 0) {
-            throw new JSONException("Empty forecasts array");
+    private static void readInstantDetails(JsonReader reader, TimeseriesEntry entry) throws IOException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (!"details".equals(reader.nextName())) {
+                reader.skipValue();
+                continue;
+            }
+            reader.beginObject();
+            while (reader.hasNext()) {
+                switch (reader.nextName()) {
+                    case "air_temperature":
+                        entry.temperature = reader.nextDouble();
+                        break;
+                    case "relative_humidity":
+                        entry.humidity = reader.nextDouble();
+                        break;
+                    case "wind_speed":
+                        entry.windSpeed = reader.nextDouble();
+                        break;
+                    case "wind_from_direction":
+                        entry.windDirection = reader.nextDouble();
+                        break;
+                    default:
+                        reader.skipValue();
+                        break;
+                }
+            }
+            reader.endObject();
         }
+        reader.endObject();
+    }
 
-        Calendar calendar = Calendar.getInstance();
-        calendar.add(Calendar.DATE, -1);
-        String yesterday = new SimpleDateFormat("yyyy-MM-dd", Locale.US).format(calendar.getTime());
+    private static String readSymbolCode(JsonReader reader) throws IOException {
+        String symbolCode = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (!"summary".equals(reader.nextName())) {
+                reader.skipValue();
+                continue;
+            }
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if ("symbol_code".equals(reader.nextName())) {
+                    symbolCode = reader.nextString();
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        }
+        reader.endObject();
+        return symbolCode;
+    }
 
-        int whileIndex = 0;
+    /**
+     * Values of the timeseries entry currently being parsed - reused for all entries
+     */
+    private static class TimeseriesEntry {
+        String time;
+        double temperature;
+        double humidity;
+        double windSpeed;
+        double windDirection;
+        String nextHourSymbol;
+        String nextSixHoursSymbol;
+
+        void reset() {
+            time = null;
+            temperature = Double.NaN;
+            humidity = Double.NaN;
+            windSpeed = Double.NaN;
+            windDirection = Double.NaN;
+            nextHourSymbol = null;
+            nextSixHoursSymbol = null;
+        }
+    }
 
-        while (convertTimeZone(timeseries.getJSONObject(whileIndex).getString("time")).contains(yesterday)) {
-            whileIndex++;
+    private class Timeseries {
+        int mEntryCount;
+        double mTemperature;
+        double mHumidity;
+        double mWindSpeed;
+        double mWindDirection;
+        String mSymbolCode;
+
+        private final TimeZone mZone = TimeZone.getDefault();
+        private final long mToday;
+        private final DayAccumulator[] mDays = new DayAccumulator[5];
+        private boolean mEndDay;
+
+        Timeseries() {
+            long now = System.currentTimeMillis();
+            mToday = Math.floorDiv(now + mZone.getOffset(now), DAY_MS);
+            for (int i = 0; i < mDays.length; i++) {
+                mDays[i] = new DayAccumulator(formatDay(mToday + i));
+            }
         }
 
-        boolean endDay = (whileIndex == 0) && isEndDay(convertTimeZone(timeseries.getJSONObject(whileIndex).getString("time")));
+        void add(TimeseriesEntry entry) {
+            long utc = parseUtcMillis(entry.time);
+            if (utc == Long.MIN_VALUE) {
+                return;
+            }
+            long local = utc + mZone.getOffset(utc);
+            int day = (int) (Math.floorDiv(local, DAY_MS) - mToday);
+            int hour = (int) (Math.floorMod(local, DAY_MS) / HOUR_MS);
+            if (mEntryCount++ == 0) {
+                // the first entry holds the current conditions
+                mTemperature = entry.temperature;
+                mHumidity = entry.humidity;
+                mWindSpeed = entry.windSpeed;
+                mWindDirection = entry.windDirection;
+                mSymbolCode = entry.nextHourSymbol;
+                mEndDay = day >= 0 && isEndDay(hour);
+            }
+            if (day >= 0 && day < mDays.length) {
+                mDays[day].add(entry, hour, day == 0 && mEndDay);
+            }
+        }
 
-        for (int i = 0; i < 5; i++) {
-            DayForecast item;
-            try {
+        boolean isValid() {
+            return mEntryCount > 0 && mSymbolCode != null && !Double.isNaN(mTemperature)
+                    && !Double.isNaN(mHumidity) && !Double.isNaN(mWindSpeed)
+                    && !Double.isNaN(mWindDirection);
+        }
 
-                double temp_max = Double.MIN_VALUE;
-                double temp_min = Double.MAX_VALUE;
-                String day = getDay(i);
-                int symbolCode = 0;
-                int scSixToTwelve = 0; // symbolCode next_6_hours in 06:00
-                int scTwelveToEighteen = 0; // symbolCode next_6_hours in 12:00
-                boolean hasFastCondition = false;
-                String conditionDescription = "";
-                String cdSixToEighteen = ""; // SymbolCode in 06:00 or 12:00
+        ArrayList<DayForecast> buildForecasts(boolean metric) {
+            // clients assume there are 5 entries - so fill with dummy if needed
+            ArrayList<DayForecast> result = new ArrayList<>(mDays.length);
+            for (int i = 0; i < mDays.length; i++) {
+                DayAccumulator day = mDays[i];
+                if (day.mCount == 0 || day.mInvalid) {
+                    Log.w(TAG, "Invalid forecast for day " + i + " creating dummy");
+                    result.add(new DayForecast(
+                            /* low */ 0,
+                            /* high */ 0,
+                            /* condition */ "",
+                            /* conditionCode */ -1,
+                            "NaN",
+                            metric));
+                    continue;
+                }
+                result.add(new DayForecast(
+                        /* low */ convertTemperature(day.mTempMin, metric),
+                        /* high */ convertTemperature(day.mTempMax, metric),
+                        /* condition */ day.mConditionDescription,
+                        /* conditionCode */ arrayWeatherIconToCode[day.mSymbolCode],
+                        day.mDay,
+                        metric));
+            }
+            return result;
+        }
+    }
 
-                while (convertTimeZone(timeseries.getJSONObject(whileIndex).getString("time")).contains(day)) {
-                    double tempI = timeseries.getJSONObject(whileIndex).getJSONObject("data").getJSONObject("instant").getJSONObject("details").getDouble("air_temperature");
+    /**
+     * Min/max temperature and the dominating condition of one day
+     */
+    private class DayAccumulator {
+        final String mDay;
+        int mCount;
+        boolean mInvalid;
+        double mTempMax = -Double.MAX_VALUE;
+        double mTempMin = Double.MAX_VALUE;
+        int mSymbolCode;
+        String mConditionDescription = "";
+        int mScSixToTwelve; // symbolCode next_6_hours in 06:00
+        int mScTwelveToEighteen; // symbolCode next_6_hours in 12:00
+        String mCdSixToEighteen = ""; // SymbolCode in 06:00 or 12:00
+        boolean mHasFastCondition;
+
+        DayAccumulator(String day) {
+            mDay = day;
+        }
 
-                    if (tempI > temp_max) {
-                        temp_max = tempI;
-                    }
-                    if (tempI < temp_min) {
-                        temp_min = tempI;
-                    }
+        void add(TimeseriesEntry entry, int hour, boolean endDay) {
+            if (Double.isNaN(entry.temperature)) {
+                mInvalid = true;
+                return;
+            }
+            mCount++;
+            if (entry.temperature > mTempMax) {
+                mTempMax = entry.temperature;
+            }
+            if (entry.temperature < mTempMin) {
+                mTempMin = entry.temperature;
+            }
 
-                    boolean hasOneHour = timeseries.getJSONObject(whileIndex).getJSONObject("data").has("next_1_hours");
-                    boolean hasSixHours = timeseries.getJSONObject(whileIndex).getJSONObject("data").has("next_6_hours");
+            boolean hasOneHour = entry.nextHourSymbol != null;
+            boolean hasSixHours = entry.nextSixHoursSymbol != null;
 
-                    hasFastCondition = scSixToTwelve != 0 && scTwelveToEighteen != 0;
+            mHasFastCondition = mScSixToTwelve != 0 && mScTwelveToEighteen != 0;
 
-                    if (!hasFastCondition && ((i == 0 && endDay) || isMorningOrAfternoon(convertTimeZone(timeseries.getJSONObject(whileIndex).getString("time")), hasOneHour))) {
-                        String stepHours = hasOneHour ? "next_1_hours" : "next_6_hours";
+            if (!mHasFastCondition && (endDay || isMorningOrAfternoon(hour, hasOneHour))) {
+                String stepTextSymbolCode = hasOneHour ? entry.nextHourSymbol : entry.nextSixHoursSymbol;
+                if (stepTextSymbolCode == null) {
+                    mInvalid = true;
+                    return;
+                }
+                int stepSymbolCode = getPriorityCondition(stepTextSymbolCode);
 
-                        String stepTextSymbolCode = timeseries.getJSONObject(whileIndex).getJSONObject("data").getJSONObject(stepHours).getJSONObject("summary").getString("symbol_code");
-                        int stepSymbolCode = getPriorityCondition(stepTextSymbolCode);
+                if (stepSymbolCode > mSymbolCode) {
+                    mSymbolCode = stepSymbolCode;
+                    mConditionDescription = stepTextSymbolCode;
+                }
 
-                        if (stepSymbolCode > symbolCode) {
-                            symbolCode = stepSymbolCode;
-                            conditionDescription = stepTextSymbolCode;
-                        }
+                if (hasSixHours) {
+                    if (hour == 6) {
+                        mScSixToTwelve = getPriorityCondition(entry.nextSixHoursSymbol);
+                        mCdSixToEighteen = entry.nextSixHoursSymbol;
+                    } else if (mScSixToTwelve != 0 && hour == 12) {
+                        mScTwelveToEighteen = getPriorityCondition(entry.nextSixHoursSymbol);
 
-                        if(hasSixHours) {
-                            if (convertTimeZone(timeseries.getJSONObject(whileIndex).getString("time")).contains("T06")) {
-                                String textSymbolCode = timeseries.getJSONObject(whileIndex).getJSONObject("data").getJSONObject("next_6_hours").getJSONObject("summary").getString("symbol_code");
-                                scSixToTwelve = getPriorityCondition(textSymbolCode);
-                                cdSixToEighteen = textSymbolCode;
-                            } else if (scSixToTwelve != 0 && convertTimeZone(timeseries.getJSONObject(whileIndex).getString("time")).contains("T12")) {
-                                String textSymbolCode = timeseries.getJSONObject(whileIndex).getJSONObject("data").getJSONObject("next_6_hours").getJSONObject("summary").getString("symbol_code");
-                                scTwelveToEighteen = getPriorityCondition(textSymbolCode);
-
-                                if (scSixToTwelve < scTwelveToEighteen) {
-                                    cdSixToEighteen = textSymbolCode;
-                                }
-                            }
+                        if (mScSixToTwelve < mScTwelveToEighteen) {
+                            mCdSixToEighteen = entry.nextSixHoursSymbol;
                         }
                     }
-                    whileIndex++;
-                }
-
-                if(hasFastCondition) {
-                    symbolCode = (scSixToTwelve > scTwelveToEighteen) ? scSixToTwelve : scTwelveToEighteen;
-                    conditionDescription = cdSixToEighteen;
                 }
-
-                item = new DayForecast(
-                        /* low */ convertTemperature(temp_min, metric),
-                        /* high */ convertTemperature(temp_max, metric),
-                        /* condition */ conditionDescription,
-                        /* conditionCode */ arrayWeatherIconToCode[symbolCode],
-                        day,
-                        metric);
-            } catch (JSONException e) {
-                Log.w(TAG, "Invalid forecast for day " + i + " creating dummy", e);
-                item = new DayForecast(
-                        /* low */ 0,
-                        /* high */ 0,
-                        /* condition */ "",
-                        /* conditionCode */ -1,
-                        "NaN",
-                        metric);
             }
-            result.add(item);
-        }
-        // clients assume there are 5  entries - so fill with dummy if needed
-        if (result.size() < 5) {
-            for (int i = result.size(); i < 5; i++) {
-                Log.w(TAG, "Missing forecast for day " + i + " creating dummy");
-                DayForecast item = new DayForecast(
-                        /* low */ 0,
-                        /* high */ 0,
-                        /* condition */ "",
-                        /* conditionCode */ -1,
-                        "NaN",
-                        metric);
-                result.add(item);
+
+            if (mHasFastCondition) {
+                mSymbolCode = Math.max(mScSixToTwelve, mScTwelveToEighteen);
+                mConditionDescription = mCdSixToEighteen;
             }
         }
-
-        return result;
     }
 
     private static final HashMap<String, Integer> SYMBOL_CODE_MAPPING = new HashMap<>();
@@ -321,81 +495,83 @@ public class METNorwayProvider extends AbstractWeatherProvider {
     }
 
     @Override
-    protected String retrieve(String url) {
-        HttpGet request = new HttpGet(url);
-        try {
-            HttpClient client = new DefaultHttpClient();
-            client.getParams().setParameter(CoreProtocolPNames.USER_AGENT, "OmniJawsApp/1.0");
-            HttpResponse response = client.execute(request);
-            int code = response.getStatusLine().getStatusCode();
-            if (!(code == HttpStatus.SC_OK || code == HttpStatus.SC_NON_AUTHORITATIVE_INFORMATION)) {
-                log(TAG, "HttpStatus: " + code + " for url: " + url);
-                return null;
-            }
-            HttpEntity entity = response.getEntity();
-            if (entity != null) {
-                return EntityUtils.toString(entity);
-            }
-        } catch (IOException e) {
-            Log.e(TAG, "Couldn't retrieve data from url " + url, e);
-        }
-        return null;
+    protected void addRequestHeaders(HttpRequest request) {
+        // api.met.no terms of service require an identifying User-Agent
+        request.setHeader("User-Agent", USER_AGENT);
     }
 
-    private void initTimeZoneFormat() {
-        gmt0Format.setTimeZone(TimeZone.getTimeZone("GMT"));
-        userTimeZoneFormat.setTimeZone(TimeZone.getDefault());
+    /**
+     * Parses the yyyy-MM-ddTHH:mm:ssZ timestamps of the timeseries.
+     * Returns Long.MIN_VALUE if the value does not have that form.
+     */
+    private static long parseUtcMillis(String time) {
+        if (time == null || time.length() < 19 || time.charAt(4) != '-' || time.charAt(7) != '-'
+                || time.charAt(10) != 'T' || time.charAt(13) != ':' || time.charAt(16) != ':') {
+            return Long.MIN_VALUE;
+        }
+        int year = parseDigits(time, 0, 4);
+        int month = parseDigits(time, 5, 7);
+        int day = parseDigits(time, 8, 10);
+        int hour = parseDigits(time, 11, 13);
+        int minute = parseDigits(time, 14, 16);
+        int second = parseDigits(time, 17, 19);
+        if (year < 0 || month < 1 || month > 12 || day < 1 || day > 31
+                || hour < 0 || hour > 23 || minute < 0 || minute > 59 || second < 0 || second > 60) {
+            return Long.MIN_VALUE;
+        }
+        return daysFromCivil(year, month, day) * DAY_MS
+                + hour * HOUR_MS + minute * 60000L + second * 1000L;
     }
 
-    private String convertTimeZone(String tmp) {
-        try {
-            return userTimeZoneFormat.format(gmt0Format.parse(tmp));
-        } catch (ParseException e) {
-            return tmp;
+    private static int parseDigits(String s, int start, int end) {
+        int value = 0;
+        for (int i = start; i < end; i++) {
+            int digit = s.charAt(i) - '0';
+            if (digit < 0 || digit > 9) {
+                return -1;
+            }
+            value = value * 10 + digit;
         }
+        return value;
     }
 
+    // days since 1970-01-01 of a proleptic gregorian date
+    private static long daysFromCivil(int year, int month, int day) {
+        year -= month <= 2 ? 1 : 0;
+        long era = Math.floorDiv(year, 400);
+        long yearOfEra = year - era * 400;
+        long dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097 + dayOfEra - 719468;
+    }
 
-    private String getDay(int i) {
-        Calendar calendar = Calendar.getInstance();
-        if(i > 0) {
-            calendar.add(Calendar.DATE, i);
-        }
-        return dayFormat.format(calendar.getTime());
+    // inverse of daysFromCivil, formatted as yyyy-MM-dd
+    private static String formatDay(long epochDay) {
+        long z = epochDay + 719468;
+        long era = Math.floorDiv(z, 146097);
+        long dayOfEra = z - era * 146097;
+        long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        long mp = (5 * dayOfYear + 2) / 153;
+        int day = (int) (dayOfYear - (153 * mp + 2) / 5 + 1);
+        int month = (int) (mp < 10 ? mp + 3 : mp - 9);
+        long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+        return String.format(Locale.US, "%04d-%02d-%02d", year, month, day);
     }
 
-    private Boolean isMorningOrAfternoon(String time, boolean hasOneHour) {
-        int endI = hasOneHour ? 17 : 13;
-        for (int i = 6; i <= endI; i++) {
-            if(time.contains((i < 10) ? "T0":"T" + i)) {
-                return true;
-            }
-        }
-        return false;
+    private static boolean isMorningOrAfternoon(int hour, boolean hasOneHour) {
+        int endHour = hasOneHour ? 17 : 13;
+        return hour >= 6 && hour <= endHour;
     }
 
-    private boolean isEndDay(String time) {
-        for (int i = 18; i <= 23; i++) {
-            if(time.contains("T" + i)) {
-                return true;
-            }
-        }
-        return false;
+    private static boolean isEndDay(int hour) {
+        return hour >= 18 && hour <= 23;
     }
 
     private String getNameLocality(String coordinate) {
         double latitude = Double.valueOf(coordinate.substring(4, coordinate.indexOf("&")));
         double longitude = Double.valueOf(coordinate.substring(coordinate.indexOf("lon=") + 4));
-        Geocoder geocoder = new Geocoder(mContext.getApplicationContext(), Locale.getDefault());
-        try {
-            List<Address> listAddresses = geocoder.getFromLocation(latitude, longitude, 1);
-            if(listAddresses != null && listAddresses.size() > 0){
-                return listAddresses.get(0).getLocality();
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-        return null;
+        return GeocoderCache.get(mContext).getLocality(latitude, longitude);
     }
 
     private static float convertTemperature(double value, boolean metric) {
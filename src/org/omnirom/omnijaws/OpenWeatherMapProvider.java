@@ -22,6 +22,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -42,7 +43,6 @@ public class OpenWeatherMapProvider extends AbstractWeatherProvider {
     private static final int FORECAST_DAYS = 5;
     private static final String SELECTION_LOCATION = "lat=%f&lon=%f";
     private static final String SELECTION_ID = "id=%s";
-    private static final String API_KEY_PREFERENCE = "custom_owm_api_key";
 
     private static final String URL_LOCATION =
             "http://api.openweathermap.org/data/2.5/find?q=%s&mode=json&lang=%s&appid=%s";
@@ -51,24 +51,23 @@ public class OpenWeatherMapProvider extends AbstractWeatherProvider {
     private static final String URL_FORECAST =
             "http://api.openweathermap.org/data/2.5/forecast/daily?%s&mode=json&units=%s&lang=%s&cnt=" + FORECAST_DAYS + "&appid=%s";
 
-    private List<String> mKeys = new ArrayList<String>();
-    private boolean mHasAPIKey;
-    private int mRequestNumber;
-    private int mSunrise;
-    private int mSunset;
+    private final List<String> mKeys = new ArrayList<String>();
+    private final boolean mHasAPIKey;
+    // rotates the built in keys, providers are shared between threads
+    private final AtomicInteger mRequestNumber = new AtomicInteger();
 
     public OpenWeatherMapProvider(Context context) {
         super(context);
         loadKeys();
-        mHasAPIKey = getAPIKey() != null;
+        mHasAPIKey = getAPIKey(0) != null;
     }
 
     public List<WeatherInfo.WeatherLocation> getLocations(String input) {
         if (!mHasAPIKey) {
             return null;
         }
-        mRequestNumber++;
-        String url = String.format(URL_LOCATION, Uri.encode(input), getLanguageCode(), getAPIKey());
+        String url = String.format(URL_LOCATION, Uri.encode(input), getLanguageCode(),
+                getAPIKey(mRequestNumber.incrementAndGet()));
         String response = retrieve(url);
         if (response == null) {
             return null;
@@ -114,22 +113,19 @@ public class OpenWeatherMapProvider extends AbstractWeatherProvider {
         if (!mHasAPIKey) {
             return null;
         }
-        mRequestNumber++;
         String units = metric ? "metric" : "imperial";
         String locale = getLanguageCode();
-        String conditionUrl = String.format(Locale.US, URL_WEATHER, selection, units, locale, getAPIKey());
-        String conditionResponse = retrieve(conditionUrl);
-        if (conditionResponse == null) {
+        String conditionUrl = String.format(Locale.US, URL_WEATHER, selection, units, locale,
+                getAPIKey(mRequestNumber.incrementAndGet()));
+        String forecastUrl = String.format(Locale.US, URL_FORECAST, selection, units, locale,
+                getAPIKey(mRequestNumber.incrementAndGet()));
+        String[] responses = retrieveAll(conditionUrl, forecastUrl);
+        if (responses == null) {
             return null;
         }
+        String conditionResponse = responses[0];
+        String forecastResponse = responses[1];
         log(TAG, "Condition URL = " + conditionUrl + " returning a response of " + conditionResponse);
-
-        mRequestNumber++;
-        String forecastUrl = String.format(Locale.US, URL_FORECAST, selection, units, locale, getAPIKey());
-        String forecastResponse = retrieve(forecastUrl);
-        if (forecastResponse == null) {
-            return null;
-        }
         log(TAG, "Forcast URL = " + forecastUrl + " returning a response of " + forecastResponse);
 
         try {
@@ -137,10 +133,11 @@ public class OpenWeatherMapProvider extends AbstractWeatherProvider {
             JSONObject weather = conditions.getJSONArray("weather").getJSONObject(0);
             JSONObject conditionData = conditions.getJSONObject("main");
             JSONObject windData = conditions.getJSONObject("wind");
-            mSunrise = conditions.getJSONObject("sys").getInt("sunrise");
-            mSunset = conditions.getJSONObject("sys").getInt("sunset");
+            int sunrise = conditions.getJSONObject("sys").getInt("sunrise");
+            int sunset = conditions.getJSONObject("sys").getInt("sunset");
             ArrayList<DayForecast> forecasts =
-                    parseForecasts(new JSONObject(forecastResponse).getJSONArray("list"), metric);
+                    parseForecasts(new JSONObject(forecastResponse).getJSONArray("list"), metric,
+                            sunrise, sunset);
             String localizedCityName = conditions.getString("name");
             float windSpeed = (float) windData.getDouble("speed");
             if (metric) {
@@ -150,7 +147,7 @@ public class OpenWeatherMapProvider extends AbstractWeatherProvider {
             WeatherInfo w = new WeatherInfo(mContext, conditions.getString("id"), localizedCityName,
                     /* condition */ weather.getString("main"),
                     /* conditionCode */ mapConditionIconToCode(
-                            weather.getString("icon"), weather.getInt("id")),
+                            weather.getString("icon"), weather.getInt("id"), sunrise, sunset),
                     /* temperature */ sanitizeTemperature(conditionData.getDouble("temp"), metric),
                     /* humidity */ (float) conditionData.getDouble("humidity"),
                     /* wind */ windSpeed,
@@ -169,7 +166,8 @@ public class OpenWeatherMapProvider extends AbstractWeatherProvider {
         return null;
     }
 
-    private ArrayList<DayForecast> parseForecasts(JSONArray forecasts, boolean metric) throws JSONException {
+    private ArrayList<DayForecast> parseForecasts(JSONArray forecasts, boolean metric,
+            int sunrise, int sunset) throws JSONException {
         ArrayList<DayForecast> result = new ArrayList<DayForecast>();
         int count = forecasts.length();
 
@@ -187,7 +185,7 @@ public class OpenWeatherMapProvider extends AbstractWeatherProvider {
                         /* high */ sanitizeTemperature(conditionData.getDouble("max"), metric),
                         /* condition */ data.getString("main"),
                         /* conditionCode */ mapConditionIconToCode(
-                                data.getString("icon"), data.getInt("id")),
+                                data.getString("icon"), data.getInt("id"), sunrise, sunset),
                         "NaN",
                         metric);
             } catch (JSONException e) {
@@ -267,9 +265,9 @@ public class OpenWeatherMapProvider extends AbstractWeatherProvider {
         return "en";
     }
 
-    private int mapConditionIconToCode(String icon, int conditionId) {
+    private int mapConditionIconToCode(String icon, int conditionId, int sunrise, int sunset) {
         long ut2 = System.currentTimeMillis() / 1000L;
-        if ((mSunrise < ut2) && (mSunset > ut2)){
+        if ((sunrise < ut2) && (sunset > ut2)){
             // First, use condition ID for specific cases
             switch (conditionId) {
                 // Thunderstorms
@@ -472,12 +470,12 @@ public class OpenWeatherMapProvider extends AbstractWeatherProvider {
         }
     }
 
-    private String getAPIKey() {
+    private String getAPIKey(int requestNumber) {
         String customKey = PreferenceManager.getDefaultSharedPreferences(mContext)
-                .getString(API_KEY_PREFERENCE, "");
+                .getString(Config.PREF_KEY_OWM_API_KEY, "");
         if (TextUtils.isEmpty(customKey)) {
             if (mKeys.size() > 0) {
-                int key = mRequestNumber % mKeys.size();
+                int key = (requestNumber & Integer.MAX_VALUE) % mKeys.size();
                 log(TAG, "use API key = " + key);
                 return mKeys.get(key);
             }
@@ -0,0 +1,251 @@
+/*
+ *  Copyright (C) 2015 The OmniROM Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.omnirom.omnijaws;
+
+import java.io.PrintWriter;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import android.content.Context;
+import android.location.Location;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Fetches weather from the selected provider and fails over to the
+ * next provider of Config.Snapshot.providerChain when it returns nothing
+ * or its circuit breaker is open. No further provider is started once
+ * the latency budget is used up.
+ *
+ * Location ids are provider specific, so custom locations only ever use
+ * the selected provider.
+ *
+ * Identical requests, also from other chains, are merged by a
+ * SingleFlight keyed by provider, geohash cell or location id, units and
+ * language.
+ *
+ * With Config.Snapshot.hedgeRequests the first two providers are raced
+ * by Hedger before the remaining chain is tried.
+ */
+class ProviderChain {
+    private static final String TAG = "WeatherService:ProviderChain";
+    private static final boolean DEBUG = false;
+
+    // requests closer than a geohash cell share one network call
+    private static final int FLIGHT_GEOHASH_PRECISION = 6;
+
+    private static final SingleFlight<Outcome> sWeatherFlight = new SingleFlight<Outcome>() {
+        @Override
+        protected boolean isKept(Outcome outcome) {
+            return outcome != null && outcome.info != null;
+        }
+
+        @Override
+        protected boolean isAbandoned(Outcome outcome) {
+            // merged requests make their own instead
+            return outcome != null && outcome.skipped;
+        }
+    };
+
+    private final Context mContext;
+    private final Config.Snapshot mConfig;
+    private final CircuitBreaker mBreaker;
+    private final long mBudget;
+
+    // written by the hedge threads as well, guarded by this
+    private final Set<String> mAttempted = new HashSet<>();
+    private boolean mShouldRetry;
+    private long mRetryDelay = Long.MAX_VALUE;
+
+    /**
+     * Result of one provider request, shared with the requests merged into it.
+     */
+    private static class Outcome {
+        final WeatherInfo info;
+        // breaker delay before a retry if the request failed
+        final long retryDelay;
+        // cancelled or refused by the breaker, says nothing about the provider
+        final boolean skipped;
+
+        Outcome(WeatherInfo info, long retryDelay, boolean skipped) {
+            this.info = info;
+            this.retryDelay = retryDelay;
+            this.skipped = skipped;
+        }
+    }
+
+    ProviderChain(Context context, Config.Snapshot config) {
+        mContext = context;
+        mConfig = config;
+        mBreaker = CircuitBreaker.get(context);
+        mBudget = context.getResources().getInteger(R.integer.provider_chain_budget_ms);
+    }
+
+    /**
+     * @return false if no provider that could be used accepts requests
+     */
+    boolean isAvailable() {
+        final List<String> providers = mConfig.customLocation
+                ? mConfig.providerChain.subList(0, 1) : mConfig.providerChain;
+        for (String provider : providers) {
+            if (mBreaker.canRequest(getName(provider))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    WeatherInfo getLocationWeather(Location location) {
+        final long start = SystemClock.elapsedRealtime();
+        final List<String> providers = mConfig.providerChain;
+        if (mConfig.hedgeRequests && providers.size() >= 2) {
+            WeatherInfo w = Hedger.get().fetch(this, providers.get(0), providers.get(1),
+                    location, mBudget);
+            if (w != null) {
+                return w;
+            }
+        }
+        for (String provider : providers) {
+            if (isAttempted(provider)) {
+                continue;
+            }
+            final long elapsed = SystemClock.elapsedRealtime() - start;
+            if (elapsed > mBudget) {
+                Log.w(TAG, "Latency budget used up after " + elapsed + "ms");
+                break;
+            }
+            WeatherInfo w = fetch(provider, location, null);
+            if (w != null) {
+                return w;
+            }
+        }
+        return null;
+    }
+
+    WeatherInfo getCustomWeather(String id) {
+        return fetch(mConfig.provider, null, id);
+    }
+
+    /**
+     * @return true if a provider failed and the update should be retried
+     */
+    synchronized boolean shouldRetry() {
+        return mShouldRetry;
+    }
+
+    /**
+     * @return the earliest time to retry a failed provider
+     */
+    synchronized long getRetryDelay() {
+        return mRetryDelay != Long.MAX_VALUE ? mRetryDelay : 0;
+    }
+
+    /**
+     * Single attempt of the given provider, used by Hedger.
+     */
+    WeatherInfo fetchLocationWeather(String provider, Location location) {
+        return fetch(provider, location, null);
+    }
+
+    private WeatherInfo fetch(final String provider, final Location location, final String id) {
+        synchronized (this) {
+            mAttempted.add(provider);
+        }
+        final AbstractWeatherProvider instance = Config.getProvider(mContext, provider);
+        final Outcome outcome = sWeatherFlight.get(getFlightKey(provider, location, id),
+                new SingleFlight.Loader<Outcome>() {
+                    @Override
+                    public Outcome load() {
+                        return request(provider, instance, location, id);
+                    }
+                });
+        if (outcome == null || outcome.skipped) {
+            return null;
+        }
+        if (outcome.info == null) {
+            synchronized (this) {
+                mShouldRetry = true;
+                mRetryDelay = Math.min(mRetryDelay, outcome.retryDelay);
+            }
+        }
+        return outcome.info;
+    }
+
+    // only runs for the first of concurrent identical requests, so only
+    // the caller making the network call claims and reports to the breaker
+    private Outcome request(String provider, AbstractWeatherProvider instance,
+            Location location, String id) {
+        final String name = CircuitBreaker.getName(instance);
+        if (!mBreaker.allowRequest(name)) {
+            if (DEBUG) Log.d(TAG, "Skipping " + name);
+            return new Outcome(null, 0, true);
+        }
+        final RequestScope scope = RequestScope.current();
+        if (scope != null && scope.isCancelled()) {
+            mBreaker.onCancelled(name);
+            return new Outcome(null, 0, true);
+        }
+        WeatherInfo w = null;
+        try {
+            w = location != null
+                    ? instance.getLocationWeather(location, mConfig.metric)
+                    : instance.getCustomWeather(id, mConfig.metric);
+        } catch (RuntimeException e) {
+            // still report below, an allowed request must not leave the probe claimed
+            Log.e(TAG, name + " crashed", e);
+        }
+        if (w != null) {
+            mBreaker.onSuccess(name);
+            w.setServedBy(Config.getProviderName(provider));
+            if (DEBUG) Log.d(TAG, "Served by " + name);
+            return new Outcome(w, 0, false);
+        }
+        if (scope != null && scope.isCancelled()) {
+            // lost a hedge race, that says nothing about the provider
+            if (DEBUG) Log.d(TAG, name + " cancelled");
+            mBreaker.onCancelled(name);
+            return new Outcome(null, 0, true);
+        }
+        final long delay = mBreaker.onFailure(name);
+        Log.w(TAG, name + " failed");
+        return new Outcome(null, delay, false);
+    }
+
+    private String getFlightKey(String provider, Location location, String id) {
+        final String target = location != null
+                ? GeocoderCache.encodeGeohash(location.getLatitude(), location.getLongitude(),
+                        FLIGHT_GEOHASH_PRECISION)
+                : "id=" + id;
+        return provider + "|" + target + "|" + (mConfig.metric ? "metric" : "imperial")
+                + "|" + SingleFlight.getLanguageKey();
+    }
+
+    private synchronized boolean isAttempted(String provider) {
+        return mAttempted.contains(provider);
+    }
+
+    static void dump(PrintWriter pw) {
+        pw.println("ProviderChain:");
+        pw.println("  " + sWeatherFlight);
+    }
+
+    private String getName(String provider) {
+        return CircuitBreaker.getName(Config.getProvider(mContext, provider));
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ *  Copyright (C) 2015 The OmniROM Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.omnirom.omnijaws;
+
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
+import java.util.Date;
+import java.util.List;
+
+import android.app.AlarmManager;
+import android.content.Context;
+import android.os.PowerManager;
+import android.util.Log;
+
+import org.omnirom.omnijaws.WeatherInfo.DayForecast;
+
+/**
+ * Adapts the refresh interval to how much the weather changes. The
+ * interval set by the user is the base, it is doubled for every update
+ * that brought (almost) the same data up to MAX_FACTOR times and while
+ * the screen is off, and halved when the weather changes quickly.
+ * The result is clamped to [base / 2, base * MAX_FACTOR].
+ */
+class RefreshPolicy {
+    private static final String TAG = "WeatherService:RefreshPolicy";
+    private static final boolean DEBUG = false;
+
+    static final long INTERVAL_BASE = AlarmManager.INTERVAL_HOUR;
+
+    private static final int MAX_FACTOR = 4;
+    private static final int MAX_STABLE_STEPS = 2;
+    // temperature deltas in the unit of the data
+    private static final float STABLE_TEMP_DELTA = 1.0f;
+    private static final float VOLATILE_TEMP_DELTA = 3.0f;
+    private static final int MAX_DECISIONS = 8;
+
+    private static RefreshPolicy sInstance;
+
+    private final Context mContext;
+
+    // guarded by this
+    private int mStableCount;
+    private boolean mVolatile;
+    private long mInterval;
+    private final ArrayDeque<String> mDecisions = new ArrayDeque<>();
+
+    static synchronized RefreshPolicy get(Context context) {
+        if (sInstance == null) {
+            sInstance = new RefreshPolicy(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private RefreshPolicy(Context context) {
+        mContext = context;
+    }
+
+    static long getBaseInterval(Context context) {
+        return INTERVAL_BASE * Config.getUpdateInterval(context);
+    }
+
+    /**
+     * Starts over from the base interval, e.g. after the settings changed.
+     *
+     * @return the interval to schedule
+     */
+    synchronized long reset() {
+        mStableCount = 0;
+        mVolatile = false;
+        mInterval = getBaseInterval(mContext);
+        record("reset", mInterval);
+        return mInterval;
+    }
+
+    /**
+     * Called after every successful update.
+     *
+     * @return the interval to schedule from now on
+     */
+    synchronized long onWeatherUpdated(WeatherInfo previous, WeatherInfo current) {
+        String change;
+        if (previous == null || previous.isMetric() != current.isMetric()) {
+            mStableCount = 0;
+            mVolatile = false;
+            change = "new";
+        } else if (isVolatile(previous, current)) {
+            mStableCount = 0;
+            mVolatile = true;
+            change = "volatile";
+        } else if (isStable(previous, current)) {
+            mStableCount = Math.min(mStableCount + 1, MAX_STABLE_STEPS);
+            mVolatile = false;
+            change = "stable x" + mStableCount;
+        } else {
+            mStableCount = 0;
+            mVolatile = false;
+            change = "changed";
+        }
+
+        final boolean interactive = isInteractive();
+        final long interval = computeInterval(interactive);
+        mInterval = interval;
+        record(change + (interactive ? "" : " screen off"), interval);
+        return interval;
+    }
+
+    /**
+     * @return the last decided interval
+     */
+    synchronized long getInterval() {
+        return mInterval != 0 ? mInterval : getBaseInterval(mContext);
+    }
+
+    /**
+     * @return the interval while the screen is on, the last decided one
+     * without the screen off stretch
+     */
+    synchronized long getInteractiveInterval() {
+        return computeInterval(true);
+    }
+
+    synchronized void dump(PrintWriter pw) {
+        pw.println("RefreshPolicy:");
+        pw.println("  interval=" + getInterval() / 60000 + "min base="
+                + getBaseInterval(mContext) / 60000 + "min stable=" + mStableCount
+                + " volatile=" + mVolatile);
+        for (String decision : mDecisions) {
+            pw.println("  " + decision);
+        }
+    }
+
+    private long computeInterval(boolean interactive) {
+        final long base = getBaseInterval(mContext);
+        long interval = base << mStableCount;
+        if (!interactive) {
+            interval *= 2;
+        }
+        if (mVolatile) {
+            interval /= 2;
+        }
+        return Math.max(base / 2, Math.min(interval, base * MAX_FACTOR));
+    }
+
+    private void record(String reason, long interval) {
+        final String decision = new Date() + " " + reason + " -> " + interval / 60000 + "min";
+        if (DEBUG) Log.d(TAG, decision);
+        if (mDecisions.size() >= MAX_DECISIONS) {
+            mDecisions.removeFirst();
+        }
+        mDecisions.addLast(decision);
+    }
+
+    private boolean isInteractive() {
+        PowerManager pm = (PowerManager) mContext.getSystemService(Context.POWER_SERVICE);
+        return pm.isInteractive();
+    }
+
+    private static boolean isVolatile(WeatherInfo previous, WeatherInfo current) {
+        return previous.getConditionCode() != current.getConditionCode()
+                || Math.abs(previous.getTemperature() - current.getTemperature()) >= VOLATILE_TEMP_DELTA;
+    }
+
+    private static boolean isStable(WeatherInfo previous, WeatherInfo current) {
+        if (Math.abs(previous.getTemperature() - current.getTemperature()) >= STABLE_TEMP_DELTA) {
+            return false;
+        }
+        final List<DayForecast> previousDays = previous.getForecasts();
+        final List<DayForecast> currentDays = current.getForecasts();
+        if (previousDays.size() != currentDays.size()) {
+            return false;
+        }
+        for (int i = 0; i < currentDays.size(); i++) {
+            DayForecast a = previousDays.get(i);
+            DayForecast b = currentDays.get(i);
+            if (a.getConditionCode() != b.getConditionCode()
+                    || Math.abs(a.getHigh() - b.getHigh()) >= STABLE_TEMP_DELTA
+                    || Math.abs(a.getLow() - b.getLow()) >= STABLE_TEMP_DELTA) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ *  Copyright (C) 2015 The OmniROM Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.omnirom.omnijaws;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.http.client.methods.HttpGet;
+
+/**
+ * Cancellation scope of a provider request. Requests made by a provider
+ * on a thread the scope is entered on register with it, cancelling the
+ * scope aborts them and makes further requests fail right away.
+ */
+class RequestScope {
+    private static final ThreadLocal<RequestScope> sCurrent = new ThreadLocal<>();
+
+    // guarded by this
+    private final List<HttpGet> mRequests = new ArrayList<>();
+    private int mNetworkRequestCount;
+    private boolean mCancelled;
+
+    /**
+     * @return the scope of the calling thread, null if none was entered
+     */
+    static RequestScope current() {
+        return sCurrent.get();
+    }
+
+    /**
+     * Makes this the scope of the calling thread, must be paired with exit().
+     */
+    void enter() {
+        sCurrent.set(this);
+    }
+
+    void exit() {
+        sCurrent.remove();
+    }
+
+    /**
+     * @return false if the scope was cancelled, the request must not be made then
+     */
+    synchronized boolean register(HttpGet request) {
+        if (mCancelled) {
+            return false;
+        }
+        mRequests.add(request);
+        mNetworkRequestCount++;
+        return true;
+    }
+
+    synchronized void unregister(HttpGet request) {
+        mRequests.remove(request);
+    }
+
+    /**
+     * @return false if everything was answered from the http cache or by
+     * a shared request
+     */
+    synchronized boolean hasNetworkRequests() {
+        return mNetworkRequestCount > 0;
+    }
+
+    synchronized boolean isCancelled() {
+        return mCancelled;
+    }
+
+    void cancel() {
+        final List<HttpGet> requests;
+        synchronized (this) {
+            if (mCancelled) {
+                return;
+            }
+            mCancelled = true;
+            requests = new ArrayList<>(mRequests);
+            mRequests.clear();
+        }
+        // abort() may block on the connection, so not with the lock held
+        for (HttpGet request : requests) {
+            request.abort();
+        }
+    }
+}
@@ -410,16 +410,15 @@ public class SettingsActivityService extends PreferenceActivity implements OnPre
 
     private String getLastUpdateTime() {
         OmniJawsClient mWeatherClient = new OmniJawsClient(this);
-        if (mWeatherClient.isOmniJawsEnabled()) {
-            OmniJawsClient.WeatherInfo mWeatherData = null;
-            try {
-                mWeatherClient.queryWeather();
-                mWeatherData = mWeatherClient.getWeatherInfo();
-                if (mWeatherData != null) {
-                    return mWeatherData.getLastUpdateTime();
-                }
-            } catch(Exception ignored) {
+        OmniJawsClient.WeatherInfo mWeatherData = null;
+        try {
+            // returns no data while disabled
+            mWeatherClient.queryWeather();
+            mWeatherData = mWeatherClient.getWeatherInfo();
+            if (mWeatherData != null) {
+                return mWeatherData.getLastUpdateTime();
             }
+        } catch(Exception ignored) {
         }
         return getResources().getString(R.string.service_disabled);
     }
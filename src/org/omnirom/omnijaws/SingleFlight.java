@@ -0,0 +1,152 @@
+/*
+ *  Copyright (C) 2015 The OmniROM Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.omnirom.omnijaws;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Merges concurrent identical requests into one call. The first caller of
+ * a key runs the loader, callers arriving while it runs wait for it and
+ * get the same result. Results are kept for FRESH_MS so repeated requests
+ * are served from memory; failures (null) are handed to the waiters but
+ * not kept. An abandoned result is not handed out at all, the waiters
+ * then load themselves.
+ */
+class SingleFlight<V> {
+    private static final String TAG = "WeatherService:SingleFlight";
+    private static final boolean DEBUG = false;
+
+    private static final long FRESH_MS = 30L * 1000L;
+
+    interface Loader<V> {
+        V load();
+    }
+
+    private static class Call<V> {
+        final CountDownLatch done = new CountDownLatch(1);
+        V value;
+        boolean abandoned;
+        // elapsed realtime of completion, 0 while running
+        long completed;
+    }
+
+    // key -> running or fresh call, guarded by this
+    private final Map<String, Call<V>> mCalls = new HashMap<>();
+    private int mLoadCount;
+    private int mSharedCount;
+
+    /**
+     * @return false if the value must not be served for FRESH_MS
+     */
+    protected boolean isKept(V value) {
+        return value != null;
+    }
+
+    /**
+     * @return true if the value must not be handed to the waiters
+     */
+    protected boolean isAbandoned(V value) {
+        return false;
+    }
+
+    /**
+     * Key part for the language the providers answer in.
+     */
+    static String getLanguageKey() {
+        return Locale.getDefault().toLanguageTag();
+    }
+
+    /**
+     * @return the loaded or shared value, null if loading failed or the
+     * calling thread was interrupted while waiting
+     */
+    V get(String key, Loader<V> loader) {
+        while (true) {
+            final Call<V> call;
+            final boolean leader;
+            synchronized (this) {
+                purge(SystemClock.elapsedRealtime());
+                Call<V> existing = mCalls.get(key);
+                if (existing != null) {
+                    call = existing;
+                    leader = false;
+                    mSharedCount++;
+                } else {
+                    call = new Call<>();
+                    mCalls.put(key, call);
+                    leader = true;
+                    mLoadCount++;
+                }
+            }
+
+            if (!leader) {
+                if (DEBUG) Log.d(TAG, "Sharing " + key);
+                try {
+                    call.done.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return null;
+                }
+                if (call.abandoned) {
+                    continue;
+                }
+                return call.value;
+            }
+
+            V value = null;
+            try {
+                value = loader.load();
+                return value;
+            } finally {
+                synchronized (this) {
+                    call.value = value;
+                    call.abandoned = isAbandoned(value);
+                    call.completed = SystemClock.elapsedRealtime();
+                    if (call.abandoned || !isKept(value)) {
+                        mCalls.remove(key);
+                    }
+                }
+                call.done.countDown();
+            }
+        }
+    }
+
+    // drops completed calls that are no longer fresh
+    private void purge(long now) {
+        Iterator<Call<V>> it = mCalls.values().iterator();
+        while (it.hasNext()) {
+            Call<V> call = it.next();
+            if (call.completed != 0 && now - call.completed > FRESH_MS) {
+                it.remove();
+            }
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "SingleFlight loads = " + mLoadCount + " shared = " + mSharedCount
+                + " size = " + mCalls.size();
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ *  Copyright (C) 2015 The OmniROM Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.omnirom.omnijaws;
+
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+import android.content.Context;
+import android.os.Build;
+import android.os.SharedMemory;
+import android.system.ErrnoException;
+import android.system.OsConstants;
+import android.util.Log;
+
+/**
+ * The current weather snapshot in a shared memory region so clients
+ * can read it without any IPC. Layout:
+ *
+ *   int sequence, int length, int crc32 of the data, data
+ *
+ * The data is WeatherInfo.toSnapshot(), empty while disabled or without
+ * weather data. The sequence is odd while the writer is active, readers
+ * retry if it changed during their read. Requires API 27.
+ */
+public final class SnapshotMemory {
+    private static final String TAG = "WeatherService:SnapshotMemory";
+    private static final boolean DEBUG = false;
+
+    private static final String NAME = "omnijaws_snapshot";
+    private static final int CAPACITY = 16 * 1024;
+    private static final int OFFSET_SEQUENCE = 0;
+    private static final int OFFSET_LENGTH = 4;
+    private static final int OFFSET_CRC = 8;
+    private static final int HEADER_SIZE = 12;
+    private static final int MAX_READ_ATTEMPTS = 8;
+
+    private static SnapshotMemory sInstance;
+
+    private final SharedMemory mMemory;
+    private final ByteBuffer mBuffer;
+    private int mSequence;
+
+    /**
+     * @return null before API 27 or if the region cannot be created
+     */
+    static synchronized SnapshotMemory get(Context context) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O_MR1) {
+            return null;
+        }
+        if (sInstance == null) {
+            try {
+                sInstance = new SnapshotMemory();
+            } catch (ErrnoException e) {
+                Log.e(TAG, "Failed to create shared memory", e);
+                return null;
+            }
+            sInstance.publish(context);
+        }
+        return sInstance;
+    }
+
+    private SnapshotMemory() throws ErrnoException {
+        mMemory = SharedMemory.create(NAME, CAPACITY);
+        // the mapping stays writable, later mappings by clients can only be read-only
+        mBuffer = mMemory.mapReadWrite();
+        mMemory.setProtect(OsConstants.PROT_READ);
+    }
+
+    static synchronized void publishIfCreated(Context context) {
+        if (sInstance != null) {
+            sInstance.publish(context);
+        }
+    }
+
+    SharedMemory getMemory() {
+        return mMemory;
+    }
+
+    /**
+     * Writes the current weather data, must be called after every change.
+     */
+    synchronized void publish(Context context) {
+        byte[] data = null;
+        if (Config.isEnabled(context)) {
+            WeatherInfo weather = Config.getWeatherData(context);
+            if (weather != null) {
+                data = weather.toSnapshot();
+            }
+        }
+        if (data == null) {
+            data = new byte[0];
+        } else if (data.length > CAPACITY - HEADER_SIZE) {
+            Log.w(TAG, "Snapshot too large " + data.length);
+            data = new byte[0];
+        }
+        mBuffer.putInt(OFFSET_SEQUENCE, ++mSequence);
+        mBuffer.putInt(OFFSET_LENGTH, data.length);
+        mBuffer.putInt(OFFSET_CRC, crc(data));
+        ByteBuffer out = mBuffer.duplicate();
+        out.position(HEADER_SIZE);
+        out.put(data);
+        mBuffer.putInt(OFFSET_SEQUENCE, ++mSequence);
+        if (DEBUG) Log.d(TAG, "publish " + data.length + " bytes, sequence " + mSequence);
+    }
+
+    /**
+     * Reads the snapshot from a read-only mapping of the region.
+     * The crc catches reads the sequence check misses because the
+     * mapped buffer gives no ordering guarantees.
+     *
+     * @return the snapshot bytes, empty if there is no weather data or
+     * null if no consistent copy could be read
+     */
+    public static byte[] read(ByteBuffer buffer) {
+        for (int attempt = 0; attempt < MAX_READ_ATTEMPTS; attempt++) {
+            final int sequence = buffer.getInt(OFFSET_SEQUENCE);
+            if ((sequence & 1) != 0) {
+                Thread.yield();
+                continue;
+            }
+            final int length = buffer.getInt(OFFSET_LENGTH);
+            final int crc = buffer.getInt(OFFSET_CRC);
+            if (length < 0 || length > buffer.capacity() - HEADER_SIZE) {
+                continue;
+            }
+            byte[] data = new byte[length];
+            ByteBuffer in = buffer.duplicate();
+            in.position(HEADER_SIZE);
+            in.get(data);
+            if (buffer.getInt(OFFSET_SEQUENCE) == sequence && crc(data) == crc) {
+                return data;
+            }
+        }
+        return null;
+    }
+
+    private static int crc(byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length);
+        return (int) crc.getValue();
+    }
+}
@@ -35,6 +35,10 @@ public class SystemReceiver extends BroadcastReceiver {
                 Config.clearLastUpdateTime(context);
                 WeatherService.scheduleUpdate(context);
             }
+        } else if (Intent.ACTION_LOCALE_CHANGED.equals(action)) {
+            if (DEBUG) Log.d(TAG, "locale changed reload condition strings");
+            WeatherInfo.invalidateConditionStrings();
+            WeatherContentProvider.updateCachedWeatherInfo(context);
         }
     }
 }
@@ -0,0 +1,197 @@
+/*
+ *  Copyright (C) 2015 The OmniROM Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.omnirom.omnijaws;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.PowerManager;
+import android.util.Log;
+
+/**
+ * Serializes weather updates. Requests are coalesced into at most one
+ * running job and one pending job that follows it, so a request arriving
+ * while an update runs is never lost but a burst of them costs only one
+ * extra update. The reasons of coalesced requests are combined.
+ */
+class UpdateScheduler {
+    private static final String TAG = "WeatherService:UpdateScheduler";
+    private static final boolean DEBUG = false;
+
+    static final int REASON_ALARM = 1;
+    static final int REASON_LOCATION = 1 << 1;
+    static final int REASON_MANUAL = 1 << 2;
+    static final int REASON_FORCED = 1 << 3;
+
+    private static UpdateScheduler sInstance;
+
+    private final Context mContext;
+    private final Handler mHandler;
+    private final PowerManager.WakeLock mWakeLock;
+
+    // guarded by this
+    private Job mRunning;
+    private Job mPending;
+
+    interface Callback {
+        /**
+         * Called on the scheduler thread.
+         *
+         * @param result one of the WeatherUpdater.RESULT_ constants
+         */
+        void onUpdateFinished(int result);
+    }
+
+    /**
+     * A requested update. Every caller coalesced into the same job
+     * gets the same instance and thus the same result.
+     */
+    static final class Job {
+        private final CountDownLatch mDone = new CountDownLatch(1);
+        private int mReasons;
+        private volatile int mResult;
+        // guarded by this, null once done
+        private List<Callback> mCallbacks = new ArrayList<>();
+
+        private Job(int reasons) {
+            mReasons = reasons;
+        }
+
+        /**
+         * @return true if the job finished within the timeout and fetched new weather data
+         */
+        boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+            return mDone.await(timeout, unit) && mResult == WeatherUpdater.RESULT_SUCCESS;
+        }
+
+        boolean isDone() {
+            return mDone.getCount() == 0;
+        }
+
+        /**
+         * Runs the callback once the job is done, right away if it already is.
+         */
+        void addCallback(Callback callback) {
+            synchronized (this) {
+                if (mCallbacks != null) {
+                    mCallbacks.add(callback);
+                    return;
+                }
+            }
+            callback.onUpdateFinished(mResult);
+        }
+
+        private void finish(int result) {
+            final List<Callback> callbacks;
+            synchronized (this) {
+                mResult = result;
+                mDone.countDown();
+                callbacks = mCallbacks;
+                mCallbacks = null;
+            }
+            for (Callback callback : callbacks) {
+                callback.onUpdateFinished(result);
+            }
+        }
+    }
+
+    static synchronized UpdateScheduler get(Context context) {
+        if (sInstance == null) {
+            sInstance = new UpdateScheduler(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private UpdateScheduler(Context context) {
+        mContext = context;
+        HandlerThread thread = new HandlerThread("WeatherService Thread");
+        thread.start();
+        mHandler = new Handler(thread.getLooper());
+        PowerManager pm = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+        mWakeLock = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, TAG);
+        mWakeLock.setReferenceCounted(false);
+    }
+
+    /**
+     * @return the job the request was coalesced into
+     */
+    synchronized Job requestUpdate(int reasons) {
+        if (mPending != null) {
+            if (DEBUG) Log.d(TAG, "Coalesce " + reasonsToString(reasons) + " into pending job");
+            mPending.mReasons |= reasons;
+            return mPending;
+        }
+        if (mRunning != null) {
+            if (DEBUG) Log.d(TAG, "Queue " + reasonsToString(reasons) + " after running job");
+            mPending = new Job(reasons);
+            return mPending;
+        }
+        mRunning = new Job(reasons);
+        start(mRunning);
+        return mRunning;
+    }
+
+    // called with the lock held
+    private void start(final Job job) {
+        mWakeLock.acquire();
+        final int reasons = job.mReasons;
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                int result = WeatherUpdater.RESULT_FAILED;
+                try {
+                    result = new WeatherUpdater(mContext).update(reasons);
+                } finally {
+                    finish(job, result);
+                }
+            }
+        });
+    }
+
+    private void finish(Job job, int result) {
+        job.finish(result);
+        startPending();
+    }
+
+    private synchronized void startPending() {
+        mRunning = mPending;
+        mPending = null;
+        if (mRunning != null) {
+            start(mRunning);
+        } else {
+            mWakeLock.release();
+        }
+    }
+
+    static String reasonsToString(int reasons) {
+        StringBuilder builder = new StringBuilder();
+        if ((reasons & REASON_ALARM) != 0) builder.append("alarm|");
+        if ((reasons & REASON_LOCATION) != 0) builder.append("location|");
+        if ((reasons & REASON_MANUAL) != 0) builder.append("manual|");
+        if ((reasons & REASON_FORCED) != 0) builder.append("forced|");
+        if (builder.length() > 0) {
+            builder.setLength(builder.length() - 1);
+        }
+        return builder.toString();
+    }
+}
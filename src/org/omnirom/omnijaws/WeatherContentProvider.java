@@ -17,6 +17,12 @@ package org.omnirom.omnijaws;
 
 import org.omnirom.omnijaws.WeatherInfo.DayForecast;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
 import android.content.ContentProvider;
 import android.content.ContentValues;
 import android.content.Context;
@@ -24,6 +30,7 @@ import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.MatrixCursor;
 import android.net.Uri;
+import android.os.Bundle;
 import android.util.Log;
 
 public class WeatherContentProvider extends ContentProvider {
@@ -31,9 +38,18 @@ public class WeatherContentProvider extends ContentProvider {
     private static final boolean DEBUG = false;
 
     static WeatherInfo sCachedWeatherInfo;
+    // rows of the /weather uri in PROJECTION_DEFAULT_WEATHER column order,
+    // rebuilt on every data update and shared by all cursors
+    private static volatile Object[][] sWeatherRows;
+    private static final int MAX_COLUMN_MAPS = 16;
+    private static final Map<List<String>, int[]> sColumnMaps = new ConcurrentHashMap<>();
+    // rows of the /snapshot uri, valid as long as weather rows and config are unchanged
+    private static volatile SnapshotRows sSnapshotRows;
+    private static final Map<List<String>, int[]> sSnapshotColumnMaps = new ConcurrentHashMap<>();
 
     private static final int URI_TYPE_WEATHER = 1;
     private static final int URI_TYPE_SETTINGS = 2;
+    private static final int URI_TYPE_SNAPSHOT = 3;
 
     private static final String COLUMN_CURRENT_CITY_ID = "city_id";
     private static final String COLUMN_CURRENT_CITY = "city";
@@ -52,6 +68,8 @@ public class WeatherContentProvider extends ContentProvider {
     private static final String COLUMN_FORECAST_CONDITION_CODE = "forecast_condition_code";
     private static final String COLUMN_FORECAST_DATE = "forecast_date";
 
+    private static final String COLUMN_SERVED_BY = "served_by";
+
     private static final String COLUMN_ENABLED = "enabled";
     private static final String COLUMN_PROVIDER = "provider";
     private static final String COLUMN_INTERVAL = "interval";
@@ -74,7 +92,8 @@ public class WeatherContentProvider extends ContentProvider {
             COLUMN_FORECAST_HIGH,
             COLUMN_FORECAST_CONDITION,
             COLUMN_FORECAST_CONDITION_CODE,
-            COLUMN_FORECAST_DATE
+            COLUMN_FORECAST_DATE,
+            COLUMN_SERVED_BY
     };
 
     private static final String[] PROJECTION_DEFAULT_SETTINGS = new String[] {
@@ -86,6 +105,34 @@ public class WeatherContentProvider extends ContentProvider {
             COLUMN_SETUP
     };
 
+    // weather columns followed by the settings clients need, settings are set on the
+    // first row only and the time stamp is a long instead of a string
+    private static final String[] PROJECTION_DEFAULT_SNAPSHOT = new String[] {
+            COLUMN_CURRENT_CITY_ID,
+            COLUMN_CURRENT_CITY,
+            COLUMN_CURRENT_CONDITION,
+            COLUMN_CURRENT_TEMPERATURE,
+            COLUMN_CURRENT_HUMIDITY,
+            COLUMN_CURRENT_WIND_SPEED,
+            COLUMN_CURRENT_WIND_DIRECTION,
+            COLUMN_CURRENT_TIME_STAMP,
+            COLUMN_CURRENT_PIN_WHEEL,
+            COLUMN_CURRENT_CONDITION_CODE,
+            COLUMN_FORECAST_LOW,
+            COLUMN_FORECAST_HIGH,
+            COLUMN_FORECAST_CONDITION,
+            COLUMN_FORECAST_CONDITION_CODE,
+            COLUMN_FORECAST_DATE,
+            COLUMN_SERVED_BY,
+            COLUMN_ENABLED,
+            COLUMN_PROVIDER,
+            COLUMN_INTERVAL,
+            COLUMN_UNITS,
+            COLUMN_LOCATION
+    };
+    private static final int SNAPSHOT_TIME_STAMP = 7;
+    private static final String BUNDLE_FORECASTS = "forecasts";
+
     public static final String AUTHORITY = "org.omnirom.omnijaws.provider";
 
     private static final UriMatcher sUriMatcher;
@@ -93,6 +140,7 @@ public class WeatherContentProvider extends ContentProvider {
         sUriMatcher = new UriMatcher(URI_TYPE_WEATHER);
         sUriMatcher.addURI(AUTHORITY, "weather", URI_TYPE_WEATHER);
         sUriMatcher.addURI(AUTHORITY, "settings", URI_TYPE_SETTINGS);
+        sUriMatcher.addURI(AUTHORITY, "snapshot", URI_TYPE_SNAPSHOT);
     }
 
     private Context mContext;
@@ -100,7 +148,7 @@ public class WeatherContentProvider extends ContentProvider {
     @Override
     public boolean onCreate() {
         mContext = getContext();
-        sCachedWeatherInfo = Config.getWeatherData(mContext);
+        setCachedWeatherInfo(mContext, Config.getWeatherData(mContext));
         return true;
     }
 
@@ -113,51 +161,204 @@ public class WeatherContentProvider extends ContentProvider {
             String sortOrder) {
 
         final int projectionType = sUriMatcher.match(uri);
-        final MatrixCursor result = new MatrixCursor(resolveProjection(projection, projectionType));
 
         if (DEBUG) Log.i(TAG, "query: " + uri.toString());
 
         if (projectionType == URI_TYPE_SETTINGS) {
+            final MatrixCursor result = new MatrixCursor(resolveProjection(projection, projectionType));
+            final Config.Snapshot config = Config.get(mContext);
             result.newRow()
-                    .add(COLUMN_ENABLED, Config.isEnabled(mContext) ? 1 : 0)
-                    .add(COLUMN_PROVIDER, Config.getProviderId(mContext))
-                    .add(COLUMN_INTERVAL, Config.getUpdateInterval(mContext))
-                    .add(COLUMN_UNITS, Config.isMetric(mContext) ? 0 : 1)
-                    .add(COLUMN_LOCATION, Config.isCustomLocation(mContext) ? Config.getLocationName(mContext) : "")
+                    .add(COLUMN_ENABLED, config.enabled ? 1 : 0)
+                    .add(COLUMN_PROVIDER, config.providerId)
+                    .add(COLUMN_INTERVAL, config.updateInterval)
+                    .add(COLUMN_UNITS, config.metric ? 0 : 1)
+                    .add(COLUMN_LOCATION, config.customLocation ? config.locationName : "")
                     .add(COLUMN_SETUP, !Config.isSetupDone(mContext) && sCachedWeatherInfo == null ? 0 : 1);
 
             return result;
+        } else if (projectionType == URI_TYPE_SNAPSHOT) {
+            final Object[][] rows = getSnapshot(mContext).rows;
+            if (projection == null) {
+                return new WeatherCursor(PROJECTION_DEFAULT_SNAPSHOT, DEFAULT_SNAPSHOT_COLUMN_MAP, rows);
+            }
+            return new WeatherCursor(projection,
+                    getColumnMap(sSnapshotColumnMaps, PROJECTION_DEFAULT_SNAPSHOT, projection), rows);
         } else if (projectionType == URI_TYPE_WEATHER) {
-            WeatherInfo weather = sCachedWeatherInfo;
-            if (weather != null) {
-                // current
-                result.newRow()
-                        .add(COLUMN_CURRENT_CITY, weather.getCity())
-                        .add(COLUMN_CURRENT_CITY_ID, weather.getId())
-                        .add(COLUMN_CURRENT_CONDITION, weather.getCondition())
-                        .add(COLUMN_CURRENT_HUMIDITY, weather.getFormattedHumidity())
-                        .add(COLUMN_CURRENT_WIND_SPEED, weather.getWindSpeed())
-                        .add(COLUMN_CURRENT_WIND_DIRECTION, weather.getWindDirection())
-                        .add(COLUMN_CURRENT_TEMPERATURE, weather.getTemperature())
-                        .add(COLUMN_CURRENT_TIME_STAMP, weather.getTimestamp().toString())
-                        .add(COLUMN_CURRENT_PIN_WHEEL, weather.getPinWheel())
-                        .add(COLUMN_CURRENT_CONDITION_CODE, weather.getConditionCode());
-
-                // forecast
-                for (DayForecast day : weather.getForecasts()) {
-                    result.newRow()
-                            .add(COLUMN_FORECAST_CONDITION, day.getCondition(mContext))
-                            .add(COLUMN_FORECAST_LOW, day.getLow())
-                            .add(COLUMN_FORECAST_HIGH, day.getHigh())
-                            .add(COLUMN_FORECAST_CONDITION_CODE, day.getConditionCode())
-                            .add(COLUMN_FORECAST_DATE, day.date);
+            final Object[][] rows = sWeatherRows;
+            if (rows != null) {
+                if (projection == null) {
+                    return new WeatherCursor(PROJECTION_DEFAULT_WEATHER, DEFAULT_WEATHER_COLUMN_MAP, rows);
                 }
-                return result;
+                return new WeatherCursor(projection,
+                        getColumnMap(sColumnMaps, PROJECTION_DEFAULT_WEATHER, projection), rows);
             }
         }
         return null;
     }
 
+    private static final int[] DEFAULT_WEATHER_COLUMN_MAP =
+            buildColumnMap(PROJECTION_DEFAULT_WEATHER, PROJECTION_DEFAULT_WEATHER);
+    private static final int[] DEFAULT_SNAPSHOT_COLUMN_MAP =
+            buildColumnMap(PROJECTION_DEFAULT_SNAPSHOT, PROJECTION_DEFAULT_SNAPSHOT);
+
+    private static int[] getColumnMap(Map<List<String>, int[]> columnMaps, String[] rowColumns,
+            String[] projection) {
+        int[] columnMap = columnMaps.get(Arrays.asList(projection));
+        if (columnMap == null) {
+            columnMap = buildColumnMap(rowColumns, projection);
+            if (columnMaps.size() >= MAX_COLUMN_MAPS) {
+                columnMaps.clear();
+            }
+            // copy since the caller still owns the projection array
+            columnMaps.put(Arrays.asList(projection.clone()), columnMap);
+        }
+        return columnMap;
+    }
+
+    private static int[] buildColumnMap(String[] rowColumns, String[] projection) {
+        int[] columnMap = new int[projection.length];
+        List<String> columns = Arrays.asList(rowColumns);
+        for (int i = 0; i < projection.length; i++) {
+            columnMap[i] = columns.indexOf(projection[i]);
+        }
+        return columnMap;
+    }
+
+    private static Object[][] buildWeatherRows(Context context, WeatherInfo weather) {
+        if (weather == null) {
+            return null;
+        }
+        final ArrayList<DayForecast> forecasts = weather.getForecasts();
+        final Object[][] rows = new Object[1 + forecasts.size()][];
+
+        // current
+        rows[0] = new Object[] {
+                weather.getId(),
+                weather.getCity(),
+                weather.getCondition(),
+                weather.getTemperature(),
+                weather.getFormattedHumidity(),
+                weather.getWindSpeed(),
+                weather.getWindDirection(),
+                weather.getTimestamp().toString(),
+                weather.getPinWheel(),
+                weather.getConditionCode(),
+                null, null, null, null, null,
+                weather.getServedBy()
+        };
+
+        // forecast
+        for (int i = 0; i < forecasts.size(); i++) {
+            DayForecast day = forecasts.get(i);
+            rows[i + 1] = new Object[] {
+                    null, null, null, null, null, null, null, null, null, null,
+                    day.getLow(),
+                    day.getHigh(),
+                    day.getCondition(context),
+                    day.getConditionCode(),
+                    day.date,
+                    null
+            };
+        }
+        return rows;
+    }
+
+    private static final class SnapshotRows {
+        final Object[][] weatherRows;
+        final Config.Snapshot config;
+        final Object[][] rows;
+        // the rows as pushed to bound listeners, created on demand
+        volatile Bundle bundle;
+
+        SnapshotRows(Object[][] weatherRows, Config.Snapshot config, Object[][] rows) {
+            this.weatherRows = weatherRows;
+            this.config = config;
+            this.rows = rows;
+        }
+    }
+
+    private static SnapshotRows getSnapshot(Context context) {
+        // both are replaced, never modified, on change
+        final Object[][] weatherRows = sWeatherRows;
+        final Config.Snapshot config = Config.get(context);
+        SnapshotRows snapshot = sSnapshotRows;
+        if (snapshot == null || snapshot.weatherRows != weatherRows || snapshot.config != config) {
+            snapshot = new SnapshotRows(weatherRows, config, buildSnapshotRows(weatherRows, config));
+            sSnapshotRows = snapshot;
+        }
+        return snapshot;
+    }
+
+    /**
+     * @return the /snapshot rows as bundle keyed by column name, forecast
+     * rows as list of bundles under "forecasts". Shared, must not be modified.
+     */
+    static Bundle getSnapshotBundle(Context context) {
+        final SnapshotRows snapshot = getSnapshot(context);
+        Bundle bundle = snapshot.bundle;
+        if (bundle == null) {
+            bundle = buildSnapshotBundle(snapshot.rows);
+            snapshot.bundle = bundle;
+        }
+        return bundle;
+    }
+
+    private static Bundle buildSnapshotBundle(Object[][] rows) {
+        final Bundle bundle = new Bundle();
+        putRow(bundle, rows[0]);
+        final ArrayList<Bundle> forecasts = new ArrayList<>(rows.length - 1);
+        for (int i = 1; i < rows.length; i++) {
+            Bundle day = new Bundle();
+            putRow(day, rows[i]);
+            forecasts.add(day);
+        }
+        bundle.putParcelableArrayList(BUNDLE_FORECASTS, forecasts);
+        return bundle;
+    }
+
+    private static void putRow(Bundle bundle, Object[] row) {
+        for (int i = 0; i < row.length; i++) {
+            final String key = PROJECTION_DEFAULT_SNAPSHOT[i];
+            final Object value = row[i];
+            if (value instanceof Integer) {
+                bundle.putInt(key, (Integer) value);
+            } else if (value instanceof Long) {
+                bundle.putLong(key, (Long) value);
+            } else if (value instanceof Float) {
+                bundle.putFloat(key, (Float) value);
+            } else if (value != null) {
+                bundle.putString(key, value.toString());
+            }
+        }
+    }
+
+    // always at least one row so clients can read the settings without weather data
+    private static Object[][] buildSnapshotRows(Object[][] weatherRows, Config.Snapshot config) {
+        final int weatherColumns = PROJECTION_DEFAULT_WEATHER.length;
+        final boolean hasWeather = config.enabled && weatherRows != null;
+        final Object[][] rows = new Object[hasWeather ? weatherRows.length : 1][];
+        for (int i = 0; i < rows.length; i++) {
+            rows[i] = new Object[PROJECTION_DEFAULT_SNAPSHOT.length];
+            if (hasWeather) {
+                System.arraycopy(weatherRows[i], 0, rows[i], 0, weatherColumns);
+            }
+        }
+        if (hasWeather) {
+            rows[0][SNAPSHOT_TIME_STAMP] = Long.valueOf((String) weatherRows[0][SNAPSHOT_TIME_STAMP]);
+        }
+        rows[0][weatherColumns] = config.enabled ? 1 : 0;
+        rows[0][weatherColumns + 1] = config.providerId;
+        rows[0][weatherColumns + 2] = config.updateInterval;
+        rows[0][weatherColumns + 3] = config.metric ? 0 : 1;
+        rows[0][weatherColumns + 4] = config.customLocation ? config.locationName : "";
+        return rows;
+    }
+
+    private static void setCachedWeatherInfo(Context context, WeatherInfo weather) {
+        sWeatherRows = buildWeatherRows(context, weather);
+        sCachedWeatherInfo = weather;
+    }
+
     private String[] resolveProjection(String[] projection, int uriType) {
         if (projection != null)
             return projection;
@@ -168,6 +369,9 @@ public class WeatherContentProvider extends ContentProvider {
 
             case URI_TYPE_SETTINGS:
                 return PROJECTION_DEFAULT_SETTINGS;
+
+            case URI_TYPE_SNAPSHOT:
+                return PROJECTION_DEFAULT_SNAPSHOT;
         }
     }
 
@@ -193,8 +397,10 @@ public class WeatherContentProvider extends ContentProvider {
 
     public static void updateCachedWeatherInfo(Context context) {
         if (DEBUG) Log.d(TAG, "updateCachedWeatherInfo()");
-        sCachedWeatherInfo = Config.getWeatherData(context);
+        setCachedWeatherInfo(context, Config.getWeatherData(context));
         context.getContentResolver().notifyChange(
                 Uri.parse("content://" + WeatherContentProvider.AUTHORITY + "/weather"), null);
+        context.getContentResolver().notifyChange(
+                Uri.parse("content://" + WeatherContentProvider.AUTHORITY + "/snapshot"), null);
     }
 }
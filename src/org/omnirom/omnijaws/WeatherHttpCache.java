@@ -0,0 +1,524 @@
+/*
+ *  Copyright (C) 2015 The OmniROM Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.omnirom.omnijaws;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.Header;
+import org.apache.http.HeaderElement;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.impl.cookie.DateParseException;
+import org.apache.http.impl.cookie.DateUtils;
+
+import android.content.Context;
+import android.util.Log;
+
+/**
+ * On-disk cache for provider responses keyed by URL.
+ *
+ * Responses are stored together with their validators (ETag, Last-Modified)
+ * and expiry (Cache-Control max-age or Expires). Fresh entries are served
+ * without network access, stale entries are revalidated with a conditional
+ * request. The total size is capped and least recently used entries are
+ * evicted first.
+ */
+class WeatherHttpCache {
+    private static final String TAG = "WeatherService:WeatherHttpCache";
+    private static final boolean DEBUG = false;
+
+    private static final String CACHE_DIR = "http";
+    private static final long MAX_SIZE = 2L * 1024L * 1024L;
+    private static final int ENTRY_VERSION = 1;
+    private static final String SUFFIX_META = ".0";
+    private static final String SUFFIX_BODY = ".1";
+    private static final String SUFFIX_TMP = ".tmp";
+
+    private static WeatherHttpCache sInstance;
+
+    private final File mDir;
+    // key -> size on disk, in access order
+    private final LinkedHashMap<String, Long> mEntries = new LinkedHashMap<>(16, 0.75f, true);
+    private long mSize;
+
+    private final AtomicInteger mHitCount = new AtomicInteger();
+    private final AtomicInteger mMissCount = new AtomicInteger();
+    private final AtomicInteger mRevalidationCount = new AtomicInteger();
+
+    static class Entry {
+        final String key;
+        final String url;
+        String etag;
+        String lastModified;
+        long expires;
+
+        private Entry(String key, String url) {
+            this.key = key;
+            this.url = url;
+        }
+
+        boolean isFresh() {
+            return expires > System.currentTimeMillis();
+        }
+    }
+
+    static synchronized WeatherHttpCache get(Context context) {
+        if (sInstance == null) {
+            sInstance = new WeatherHttpCache(new File(context.getCacheDir(), CACHE_DIR));
+        }
+        return sInstance;
+    }
+
+    private WeatherHttpCache(File dir) {
+        mDir = dir;
+        if (!mDir.isDirectory() && !mDir.mkdirs()) {
+            Log.w(TAG, "Failed to create cache dir " + mDir);
+        }
+        loadIndex();
+    }
+
+    private void loadIndex() {
+        File[] files = mDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        // oldest write first, the access order of the last run is not persisted
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                return Long.compare(lhs.lastModified(), rhs.lastModified());
+            }
+        });
+        for (File f : files) {
+            String name = f.getName();
+            if (!name.endsWith(SUFFIX_META)) {
+                if (name.endsWith(SUFFIX_TMP)) {
+                    f.delete();
+                }
+                continue;
+            }
+            String key = name.substring(0, name.length() - SUFFIX_META.length());
+            File body = bodyFile(key);
+            if (!body.exists()) {
+                f.delete();
+                continue;
+            }
+            long size = f.length() + body.length();
+            mEntries.put(key, size);
+            mSize += size;
+        }
+        if (DEBUG) Log.d(TAG, "Loaded " + mEntries.size() + " entries size = " + mSize);
+    }
+
+    synchronized Entry lookup(String url) {
+        String key = keyFor(url);
+        if (!mEntries.containsKey(key)) {
+            return null;
+        }
+        Entry entry = readMeta(key);
+        if (entry == null || !url.equals(entry.url)) {
+            remove(key);
+            return null;
+        }
+        // move to the most recently used position, only kept in memory so a
+        // hit does not write to disk
+        mEntries.get(key);
+        return entry;
+    }
+
+    void addConditionalHeaders(Entry entry, HttpRequest request) {
+        if (entry.etag != null) {
+            request.setHeader("If-None-Match", entry.etag);
+        }
+        if (entry.lastModified != null) {
+            request.setHeader("If-Modified-Since", entry.lastModified);
+        }
+    }
+
+    synchronized InputStream openBody(Entry entry) {
+        try {
+            return new BufferedInputStream(new FileInputStream(bodyFile(entry.key)));
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to open cached body for " + entry.url, e);
+            remove(entry.key);
+        }
+        return null;
+    }
+
+    /**
+     * Starts storing a full response if it is cacheable at all
+     *
+     * @return null if the response must not be cached
+     */
+    synchronized Editor edit(String url, HttpResponse response) {
+        String key = keyFor(url);
+        Entry entry = new Entry(key, url);
+        if (!applyHeaders(entry, response)) {
+            if (mEntries.containsKey(key)) {
+                remove(key);
+            }
+            return null;
+        }
+        try {
+            return new Editor(entry, File.createTempFile(key, SUFFIX_TMP, mDir));
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to create cache entry for " + url, e);
+        }
+        return null;
+    }
+
+    class Editor {
+        private final Entry mEntry;
+        private final File mTmp;
+        private final OutputStream mOut;
+        private InputStream mIn;
+        private boolean mDone;
+
+        private Editor(Entry entry, File tmp) throws IOException {
+            mEntry = entry;
+            mTmp = tmp;
+            mOut = new BufferedOutputStream(new FileOutputStream(tmp));
+        }
+
+        /**
+         * @return a stream that copies everything read from in to the cache
+         */
+        InputStream tee(InputStream in) {
+            mIn = new FilterInputStream(in) {
+                @Override
+                public int read() throws IOException {
+                    int b = super.read();
+                    if (b != -1) {
+                        mOut.write(b);
+                    }
+                    return b;
+                }
+
+                @Override
+                public int read(byte[] buffer, int offset, int count) throws IOException {
+                    int read = super.read(buffer, offset, count);
+                    if (read > 0) {
+                        mOut.write(buffer, offset, read);
+                    }
+                    return read;
+                }
+
+                @Override
+                public long skip(long count) throws IOException {
+                    // must go through read() so skipped bytes end up in the cache
+                    byte[] buffer = new byte[(int) Math.min(count, 8192)];
+                    long skipped = 0;
+                    while (skipped < count) {
+                        int read = read(buffer, 0, (int) Math.min(buffer.length, count - skipped));
+                        if (read == -1) {
+                            break;
+                        }
+                        skipped += read;
+                    }
+                    return skipped;
+                }
+
+                @Override
+                public boolean markSupported() {
+                    return false;
+                }
+            };
+            return mIn;
+        }
+
+        /**
+         * Reads what the parser left over and publishes the entry
+         */
+        void commit() throws IOException {
+            if (mDone) {
+                return;
+            }
+            mDone = true;
+            try {
+                byte[] buffer = new byte[8192];
+                while (mIn != null && mIn.read(buffer) != -1) {
+                    // drain into the cache file
+                }
+                mOut.close();
+                synchronized (WeatherHttpCache.this) {
+                    if (!writeMeta(mEntry) || !mTmp.renameTo(bodyFile(mEntry.key))) {
+                        throw new IOException("Failed to commit entry " + mEntry.key);
+                    }
+                    updateSize(mEntry.key);
+                    trimToSize();
+                }
+            } catch (IOException e) {
+                mTmp.delete();
+                synchronized (WeatherHttpCache.this) {
+                    remove(mEntry.key);
+                }
+                throw e;
+            }
+        }
+
+        void abort() {
+            if (mDone) {
+                return;
+            }
+            mDone = true;
+            try {
+                mOut.close();
+            } catch (IOException ignored) {
+            }
+            mTmp.delete();
+        }
+    }
+
+    /**
+     * Refreshes validators and expiry of an entry after a 304 response
+     */
+    synchronized void update(Entry entry, HttpResponse response) {
+        if (!applyHeaders(entry, response)) {
+            // revalidated but no longer cacheable - serve it once and drop it
+            entry.expires = 0;
+        }
+        if (!writeMeta(entry)) {
+            remove(entry.key);
+            return;
+        }
+        updateSize(entry.key);
+    }
+
+    void recordHit() {
+        mHitCount.incrementAndGet();
+    }
+
+    void recordMiss() {
+        mMissCount.incrementAndGet();
+    }
+
+    void recordRevalidation() {
+        mRevalidationCount.incrementAndGet();
+    }
+
+    int getHitCount() {
+        return mHitCount.get();
+    }
+
+    int getMissCount() {
+        return mMissCount.get();
+    }
+
+    int getRevalidationCount() {
+        return mRevalidationCount.get();
+    }
+
+    synchronized long getSize() {
+        return mSize;
+    }
+
+    @Override
+    public String toString() {
+        return "WeatherHttpCache hits = " + getHitCount() + " misses = " + getMissCount()
+                + " revalidations = " + getRevalidationCount() + " size = " + getSize();
+    }
+
+    /**
+     * @return false if the response must not be stored
+     */
+    private static boolean applyHeaders(Entry entry, HttpResponse response) {
+        final long now = System.currentTimeMillis();
+        long expires = 0;
+        boolean hasMaxAge = false;
+
+        Header cacheControl = response.getFirstHeader("Cache-Control");
+        if (cacheControl != null) {
+            for (HeaderElement element : cacheControl.getElements()) {
+                String name = element.getName();
+                if ("no-store".equalsIgnoreCase(name)) {
+                    return false;
+                } else if ("no-cache".equalsIgnoreCase(name)) {
+                    expires = 0;
+                    hasMaxAge = true;
+                } else if ("max-age".equalsIgnoreCase(name) && element.getValue() != null && !hasMaxAge) {
+                    try {
+                        expires = now + Long.parseLong(element.getValue()) * 1000L;
+                        hasMaxAge = true;
+                    } catch (NumberFormatException ignored) {
+                    }
+                }
+            }
+        }
+        if (!hasMaxAge) {
+            Date expiresDate = parseDateHeader(response, "Expires");
+            if (expiresDate != null) {
+                // correct for server clock skew using its Date header
+                Date serverDate = parseDateHeader(response, "Date");
+                long serverNow = serverDate != null ? serverDate.getTime() : now;
+                expires = now + (expiresDate.getTime() - serverNow);
+            }
+        }
+
+        Header etag = response.getFirstHeader("ETag");
+        if (etag != null) {
+            entry.etag = etag.getValue();
+        }
+        Header lastModified = response.getFirstHeader("Last-Modified");
+        if (lastModified != null) {
+            entry.lastModified = lastModified.getValue();
+        }
+        entry.expires = expires;
+        return entry.etag != null || entry.lastModified != null || expires > now;
+    }
+
+    private static Date parseDateHeader(HttpResponse response, String name) {
+        Header header = response.getFirstHeader(name);
+        if (header == null) {
+            return null;
+        }
+        try {
+            return DateUtils.parseDate(header.getValue());
+        } catch (DateParseException e) {
+            return null;
+        }
+    }
+
+    private Entry readMeta(String key) {
+        try {
+            DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(metaFile(key))));
+            try {
+                if (in.readInt() != ENTRY_VERSION) {
+                    return null;
+                }
+                Entry entry = new Entry(key, in.readUTF());
+                entry.etag = readOptionalString(in);
+                entry.lastModified = readOptionalString(in);
+                entry.expires = in.readLong();
+                return entry;
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to read cache entry " + key, e);
+        }
+        return null;
+    }
+
+    private boolean writeMeta(Entry entry) {
+        File tmp = new File(mDir, entry.key + SUFFIX_META + SUFFIX_TMP);
+        try {
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(tmp)));
+            try {
+                out.writeInt(ENTRY_VERSION);
+                out.writeUTF(entry.url);
+                writeOptionalString(out, entry.etag);
+                writeOptionalString(out, entry.lastModified);
+                out.writeLong(entry.expires);
+            } finally {
+                out.close();
+            }
+            return tmp.renameTo(metaFile(entry.key));
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to write cache entry " + entry.key, e);
+            tmp.delete();
+        }
+        return false;
+    }
+
+    private static String readOptionalString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static void writeOptionalString(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private void updateSize(String key) {
+        Long oldSize = mEntries.get(key);
+        if (oldSize != null) {
+            mSize -= oldSize;
+        }
+        long size = metaFile(key).length() + bodyFile(key).length();
+        mEntries.put(key, size);
+        mSize += size;
+    }
+
+    private void trimToSize() {
+        Iterator<Map.Entry<String, Long>> it = mEntries.entrySet().iterator();
+        while (mSize > MAX_SIZE && it.hasNext()) {
+            Map.Entry<String, Long> eldest = it.next();
+            if (DEBUG) Log.d(TAG, "Evicting " + eldest.getKey());
+            mSize -= eldest.getValue();
+            metaFile(eldest.getKey()).delete();
+            bodyFile(eldest.getKey()).delete();
+            it.remove();
+        }
+    }
+
+    private void remove(String key) {
+        Long size = mEntries.remove(key);
+        if (size != null) {
+            mSize -= size;
+        }
+        metaFile(key).delete();
+        bodyFile(key).delete();
+    }
+
+    private File metaFile(String key) {
+        return new File(mDir, key + SUFFIX_META);
+    }
+
+    private File bodyFile(String key) {
+        return new File(mDir, key + SUFFIX_BODY);
+    }
+
+    private static String keyFor(String url) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            byte[] hash = digest.digest(url.getBytes(StandardCharsets.UTF_8));
+            StringBuilder builder = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                builder.append(Character.forDigit((b >> 4) & 0xf, 16));
+                builder.append(Character.forDigit(b & 0xf, 16));
+            }
+            return builder.toString();
+        } catch (NoSuchAlgorithmException e) {
+            return Integer.toHexString(url.hashCode());
+        }
+    }
+}
@@ -16,6 +16,12 @@
 
 package org.omnirom.omnijaws;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
 import java.util.Date;
@@ -26,6 +32,11 @@ import android.content.res.Resources;
 public class WeatherInfo {
     private static final DecimalFormat sNoDigitsFormat = new DecimalFormat("0");
 
+    private static final int MAX_CONDITION_CODE = 47;
+    // localized weather_<code> strings indexed by code + 1 so the -1 (not available)
+    // code has a slot too, null where no string exists
+    private static volatile String[] sConditionStrings;
+
     private Context mContext;
 
     private String id;
@@ -40,6 +51,8 @@ public class WeatherInfo {
     private long timestamp;
     private ArrayList<DayForecast> forecasts;
     private boolean metric;
+    // name of the provider the data came from
+    private String servedBy;
 
     private WeatherInfo(Context context, String id,
             String city, String condition, int conditionCode, float temp,
@@ -147,12 +160,38 @@ public class WeatherInfo {
     }
 
     private static String getCondition(Context context, int conditionCode, String condition) {
-        final Resources res = context.getResources();
-        final int resId = res.getIdentifier("weather_" + conditionCode, "string", context.getPackageName());
-        if (resId != 0) {
-            return res.getString(resId);
+        if (conditionCode < -1 || conditionCode > MAX_CONDITION_CODE) {
+            return condition;
+        }
+        String[] conditions = sConditionStrings;
+        if (conditions == null) {
+            conditions = loadConditionStrings(context);
+        }
+        final String localized = conditions[conditionCode + 1];
+        return localized != null ? localized : condition;
+    }
+
+    private static synchronized String[] loadConditionStrings(Context context) {
+        if (sConditionStrings == null) {
+            final Resources res = context.getResources();
+            final String packageName = context.getPackageName();
+            final String[] conditions = new String[MAX_CONDITION_CODE + 2];
+            for (int code = -1; code <= MAX_CONDITION_CODE; code++) {
+                final int resId = res.getIdentifier("weather_" + code, "string", packageName);
+                if (resId != 0) {
+                    conditions[code + 1] = res.getString(resId);
+                }
+            }
+            sConditionStrings = conditions;
         }
-        return condition;
+        return sConditionStrings;
+    }
+
+    /**
+     * Drops the localized condition strings, must be called when the locale changes.
+     */
+    public static synchronized void invalidateConditionStrings() {
+        sConditionStrings = null;
     }
 
     public Long getTimestamp() {
@@ -202,6 +241,14 @@ public class WeatherInfo {
       return pw;
     }
 
+    public String getServedBy() {
+        return servedBy;
+    }
+
+    void setServedBy(String servedBy) {
+        this.servedBy = servedBy;
+    }
+
     public String getPinWheel() {
         return pinWheel;
     }
@@ -210,6 +257,10 @@ public class WeatherInfo {
         return forecasts;
     }
 
+    public boolean isMetric() {
+        return metric;
+    }
+
     public float getTemperature() {
         return temperature;
     }
@@ -239,6 +290,9 @@ public class WeatherInfo {
         builder.append(getFormattedWindSpeed());
         builder.append(" at ");
         builder.append(getWindDirection());
+        if (servedBy != null) {
+            builder.append(", from ").append(servedBy);
+        }
         if (forecasts.size() > 0) {
             builder.append(", forecasts:");
         }
@@ -257,35 +311,171 @@ public class WeatherInfo {
         return builder.toString();
     }
 
-    public String toSerializedString() {
-        StringBuilder builder = new StringBuilder();
-        builder.append(id).append('|');
-        builder.append(city).append('|');
-        builder.append(condition).append('|');
-        builder.append(conditionCode).append('|');
-        builder.append(temperature).append('|');
-        builder.append(humidity).append('|');
-        builder.append(wind).append('|');
-        builder.append(windDirection).append('|');
-        builder.append(metric).append('|');
-        builder.append(timestamp).append('|');
-        builder.append(pinWheel).append('|');
-        serializeForecasts(builder);
-        return builder.toString();
+    /**
+     * Binary snapshot layout, all values big endian:
+     *
+     *   int magic, short version, short min reader version
+     *   record: weather fields, version 2 appended the serving provider
+     *   short forecast count, then one record per forecast
+     *
+     * Every record is prefixed with its int length. Newer versions may only
+     * append fields to the end of a record so older readers can skip them;
+     * incompatible changes must raise SNAPSHOT_MIN_READER_VERSION.
+     * Strings are a short byte length (-1 for null) followed by UTF-8 bytes.
+     */
+    private static final int SNAPSHOT_MAGIC = 0x4f4a5753; // OJWS
+    private static final int SNAPSHOT_VERSION = 2;
+    private static final int SNAPSHOT_MIN_READER_VERSION = 1;
+
+    public byte[] toSnapshot() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(512);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeShort(SNAPSHOT_VERSION);
+            out.writeShort(SNAPSHOT_MIN_READER_VERSION);
+
+            ByteArrayOutputStream recordBytes = new ByteArrayOutputStream(256);
+            DataOutputStream record = new DataOutputStream(recordBytes);
+            writeString(record, id);
+            writeString(record, city);
+            writeString(record, condition);
+            record.writeInt(conditionCode);
+            record.writeFloat(temperature);
+            record.writeFloat(humidity);
+            record.writeFloat(wind);
+            record.writeInt(windDirection);
+            record.writeBoolean(metric);
+            record.writeLong(timestamp);
+            writeString(record, pinWheel);
+            writeString(record, servedBy);
+            writeRecord(out, recordBytes);
+
+            out.writeShort(forecasts.size());
+            for (DayForecast d : forecasts) {
+                recordBytes.reset();
+                record.writeFloat(d.high);
+                record.writeFloat(d.low);
+                record.writeInt(d.conditionCode);
+                writeString(record, d.condition);
+                writeString(record, d.date);
+                writeRecord(out, recordBytes);
+            }
+            out.flush();
+        } catch (IOException e) {
+            // cannot happen with in memory streams
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
     }
 
-    private void serializeForecasts(StringBuilder builder) {
-        builder.append(forecasts.size());
-        for (DayForecast d : forecasts) {
-            builder.append(';');
-            builder.append(d.high).append(';');
-            builder.append(d.low).append(';');
-            builder.append(d.condition).append(';');
-            builder.append(d.conditionCode).append(';');
-            builder.append(d.date);
+    /**
+     * @return null if the snapshot is damaged or was written by an
+     * incompatible version
+     */
+    public static WeatherInfo fromSnapshot(Context context, byte[] snapshot) {
+        if (snapshot == null) {
+            return null;
+        }
+        try {
+            ByteBuffer in = ByteBuffer.wrap(snapshot);
+            if (in.getInt() != SNAPSHOT_MAGIC) {
+                return null;
+            }
+            in.getShort(); // version
+            int minReaderVersion = in.getShort();
+            if (minReaderVersion > SNAPSHOT_VERSION) {
+                return null;
+            }
+
+            int recordEnd = readRecordEnd(in);
+            String id = readString(in);
+            String city = readString(in);
+            String condition = readString(in);
+            int conditionCode = in.getInt();
+            float temperature = in.getFloat();
+            float humidity = in.getFloat();
+            float wind = in.getFloat();
+            int windDirection = in.getInt();
+            boolean metric = in.get() != 0;
+            long timestamp = in.getLong();
+            String pinWheel = readString(in);
+            String servedBy = in.position() < recordEnd ? readString(in) : null;
+            in.position(recordEnd);
+
+            int forecastItems = in.getShort();
+            ArrayList<DayForecast> forecasts = new ArrayList<DayForecast>(forecastItems);
+            for (int item = 0; item < forecastItems; item++) {
+                recordEnd = readRecordEnd(in);
+                float high = in.getFloat();
+                float low = in.getFloat();
+                int dayConditionCode = in.getInt();
+                String dayCondition = readString(in);
+                String date = readString(in);
+                in.position(recordEnd);
+                if (!Float.isNaN(low) && !Float.isNaN(high)) {
+                    forecasts.add(new DayForecast(low, high, dayCondition, dayConditionCode,
+                            date, metric));
+                }
+            }
+
+            if (forecasts.isEmpty()) {
+                return null;
+            }
+
+            WeatherInfo info = new WeatherInfo(context, id, city, condition, conditionCode,
+                    temperature, humidity, wind, windDirection, metric, forecasts, timestamp,
+                    pinWheel);
+            info.servedBy = servedBy;
+            return info;
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static void writeRecord(DataOutputStream out, ByteArrayOutputStream record)
+            throws IOException {
+        out.writeInt(record.size());
+        record.writeTo(out);
+    }
+
+    private static int readRecordEnd(ByteBuffer in) {
+        int length = in.getInt();
+        if (length < 0 || length > in.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        return in.position() + length;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeShort(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        int length = Math.min(bytes.length, Short.MAX_VALUE);
+        out.writeShort(length);
+        out.write(bytes, 0, length);
+    }
+
+    private static String readString(ByteBuffer in) {
+        int length = in.getShort();
+        if (length < 0) {
+            return null;
+        }
+        if (length > in.remaining()) {
+            throw new BufferUnderflowException();
         }
+        String value = new String(in.array(), in.arrayOffset() + in.position(), length,
+                StandardCharsets.UTF_8);
+        in.position(in.position() + length);
+        return value;
     }
 
+    /**
+     * Reads the pipe delimited format used before the binary snapshot,
+     * only needed to migrate existing data.
+     */
     public static WeatherInfo fromSerializedString(Context context, String input) {
         if (input == null) {
             return null;
@@ -0,0 +1,127 @@
+/*
+ *  Copyright (C) 2015 The OmniROM Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.omnirom.omnijaws;
+
+import android.app.job.JobInfo;
+import android.app.job.JobParameters;
+import android.app.job.JobScheduler;
+import android.app.job.JobService;
+import android.content.ComponentName;
+import android.content.Context;
+import android.os.Build;
+import android.util.Log;
+
+/**
+ * Runs the scheduled weather updates. The periodic job replaces the
+ * repeating alarm, the one-shot retry job replaces sleeping between
+ * attempts. Both wait for a network so no update is started without one.
+ * Backoff after provider failures is up to the CircuitBreaker, the job
+ * backoff only applies to jobs stopped by the system.
+ */
+public class WeatherJobService extends JobService {
+    private static final String TAG = "WeatherService:WeatherJobService";
+    private static final boolean DEBUG = false;
+
+    private static final int JOB_ID_PERIODIC = 1;
+    private static final int JOB_ID_RETRY = 2;
+
+    private static final long BACKOFF_INITIAL_MS = 30L * 1000L;
+
+    static void schedule(Context context, long interval) {
+        JobInfo.Builder builder = newJobBuilder(context, JOB_ID_PERIODIC)
+                .setPeriodic(interval);
+        if (DEBUG) Log.d(TAG, "Scheduling periodic update every " + interval + "ms");
+        getJobScheduler(context).schedule(builder.build());
+    }
+
+    /**
+     * @return the interval of the scheduled periodic job, 0 if there is none
+     */
+    static long getScheduledInterval(Context context) {
+        JobInfo job = getJobScheduler(context).getPendingJob(JOB_ID_PERIODIC);
+        return job != null ? job.getIntervalMillis() : 0;
+    }
+
+    /**
+     * Runs an update as soon as a network is available.
+     */
+    static void scheduleRetry(Context context) {
+        scheduleRetry(context, 0);
+    }
+
+    /**
+     * Runs an update once the delay passed and a network is available.
+     */
+    static void scheduleRetry(Context context, long delay) {
+        if (DEBUG) Log.d(TAG, "Scheduling retry in " + delay + "ms");
+        JobInfo.Builder builder = newJobBuilder(context, JOB_ID_RETRY)
+                .setMinimumLatency(delay);
+        getJobScheduler(context).schedule(builder.build());
+    }
+
+    static void cancel(Context context) {
+        JobScheduler scheduler = getJobScheduler(context);
+        scheduler.cancel(JOB_ID_PERIODIC);
+        scheduler.cancel(JOB_ID_RETRY);
+    }
+
+    private static JobInfo.Builder newJobBuilder(Context context, int jobId) {
+        JobInfo.Builder builder = new JobInfo.Builder(jobId,
+                new ComponentName(context, WeatherJobService.class))
+                .setRequiredNetworkType(JobInfo.NETWORK_TYPE_ANY)
+                .setPersisted(true)
+                .setBackoffCriteria(BACKOFF_INITIAL_MS, JobInfo.BACKOFF_POLICY_EXPONENTIAL);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            builder.setRequiresBatteryNotLow(true);
+        }
+        return builder;
+    }
+
+    private static JobScheduler getJobScheduler(Context context) {
+        return (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+    }
+
+    @Override
+    public boolean onStartJob(final JobParameters params) {
+        if (!Config.isEnabled(this)) {
+            Log.w(TAG, "Job started, but not enabled");
+            cancel(this);
+            return false;
+        }
+        if (DEBUG) Log.d(TAG, "onStartJob " + params.getJobId());
+        if (params.getJobId() == JOB_ID_PERIODIC) {
+            Config.setLastAlarmTime(this);
+        }
+        Config.setUpdateError(this, false);
+        UpdateScheduler.get(this).requestUpdate(UpdateScheduler.REASON_ALARM)
+                .addCallback(new UpdateScheduler.Callback() {
+            @Override
+            public void onUpdateFinished(int result) {
+                if (DEBUG) Log.d(TAG, "Job " + params.getJobId() + " finished " + result);
+                jobFinished(params, false);
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        // the update itself cannot be stopped, just try again later
+        return true;
+    }
+}
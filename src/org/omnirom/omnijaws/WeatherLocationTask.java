@@ -18,6 +18,7 @@ package org.omnirom.omnijaws;
 
 import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
 
 import android.app.AlertDialog;
 import android.app.ProgressDialog;
@@ -28,6 +29,11 @@ import android.text.TextUtils;
 import android.widget.Toast;
 
 public class WeatherLocationTask extends AsyncTask<Void, Void, List<WeatherInfo.WeatherLocation>> {
+    // a search repeated while the previous one runs or right after it
+    // shares its result
+    private static final SingleFlight<List<WeatherInfo.WeatherLocation>> sLocationsFlight =
+            new SingleFlight<>();
+
     private ProgressDialog mProgressDialog;
     private String mLocation;
     private Callback mCallback;
@@ -62,7 +68,15 @@ public class WeatherLocationTask extends AsyncTask<Void, Void, List<WeatherInfo.
 
     @Override
     protected List<WeatherInfo.WeatherLocation> doInBackground(Void... input) {
-        return Config.getProvider(mContext).getLocations(mLocation);
+        final AbstractWeatherProvider provider = Config.getProvider(mContext);
+        final String key = Config.getProviderId(mContext) + "|"
+                + mLocation.trim().toLowerCase(Locale.ROOT) + "|" + SingleFlight.getLanguageKey();
+        return sLocationsFlight.get(key, new SingleFlight.Loader<List<WeatherInfo.WeatherLocation>>() {
+            @Override
+            public List<WeatherInfo.WeatherLocation> load() {
+                return provider.getLocations(mLocation);
+            }
+        });
     }
 
     @Override
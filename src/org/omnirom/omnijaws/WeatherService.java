@@ -17,9 +17,10 @@
  */
 package org.omnirom.omnijaws;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.util.Date;
 
-import android.Manifest;
 import android.app.AlarmManager;
 import android.app.PendingIntent;
 import android.app.Service;
@@ -27,30 +28,30 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
-import android.content.pm.PackageManager;
-import android.location.Criteria;
-import android.location.Location;
-import android.location.LocationManager;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
-import android.os.Handler;
-import android.os.HandlerThread;
+import android.os.Bundle;
 import android.os.IBinder;
-import android.os.PowerManager;
-import android.provider.Settings;
-import android.text.TextUtils;
+import android.os.RemoteCallbackList;
+import android.os.RemoteException;
+import android.os.SharedMemory;
 import android.util.Log;
 
 public class WeatherService extends Service {
     private static final String TAG = "WeatherService";
     private static final boolean DEBUG = false;
     private static final String ACTION_UPDATE = "org.omnirom.omnijaws.ACTION_UPDATE";
+    // repeating alarm of older versions, replaced by WeatherJobService
     private static final String ACTION_ALARM = "org.omnirom.omnijaws.ACTION_ALARM";
     private static final String ACTION_ENABLE = "org.omnirom.omnijaws.ACTION_ENABLE";
     private static final String ACTION_BROADCAST = "org.omnirom.omnijaws.WEATHER_UPDATE";
     private static final String ACTION_ERROR = "org.omnirom.omnijaws.WEATHER_ERROR";
 
+    private static final String PERMISSION_READ_WEATHER = "org.omnirom.omnijaws.READ_WEATHER";
+
     private static final String EXTRA_ENABLE = "enable";
+    private static final String EXTRA_FORCE = "force";
+    private static final String EXTRA_REASON = "reason";
     private static final String EXTRA_ERROR = "error";
 
     private static final int EXTRA_ERROR_NETWORK = 0;
@@ -60,35 +61,57 @@ public class WeatherService extends Service {
     static final String ACTION_CANCEL_LOCATION_UPDATE =
             "org.omnirom.omnijaws.CANCEL_LOCATION_UPDATE";
 
-    private static final float LOCATION_ACCURACY_THRESHOLD_METERS = 50000;
     public static final long LOCATION_REQUEST_TIMEOUT = 5L * 60L * 1000L; // request for at most 5 minutes
-    private static final long OUTDATED_LOCATION_THRESHOLD_MILLIS = 10L * 60L * 1000L; // 10 minutes
-    private static final long ALARM_INTERVAL_BASE = AlarmManager.INTERVAL_HOUR;
-    private static final int RETRY_DELAY_MS = 5000;
-    private static final int RETRY_MAX_NUM = 5;
-
-    private HandlerThread mHandlerThread;
-    private Handler mHandler;
-    private PowerManager.WakeLock mWakeLock;
-    private boolean mRunning;
-    private static PendingIntent mAlarm;
-
-    private static final Criteria sLocationCriteria;
-    static {
-        sLocationCriteria = new Criteria();
-        sLocationCriteria.setPowerRequirement(Criteria.POWER_LOW);
-        sLocationCriteria.setAccuracy(Criteria.ACCURACY_COARSE);
-        sLocationCriteria.setCostAllowed(false);
-    }
+
+    // shared by all service instances since updates outlive them
+    private static final RemoteCallbackList<IWeatherListener> sListeners = new RemoteCallbackList<>();
+
+    private final IWeatherService.Stub mBinder = new IWeatherService.Stub() {
+        @Override
+        public Bundle getWeatherSnapshot() {
+            enforceCallingOrSelfPermission(PERMISSION_READ_WEATHER, null);
+            return WeatherContentProvider.getSnapshotBundle(WeatherService.this);
+        }
+
+        @Override
+        public SharedMemory getSnapshotMemory() {
+            enforceCallingOrSelfPermission(PERMISSION_READ_WEATHER, null);
+            SnapshotMemory memory = SnapshotMemory.get(WeatherService.this);
+            return memory != null ? memory.getMemory() : null;
+        }
+
+        @Override
+        public void registerListener(IWeatherListener listener) {
+            enforceCallingOrSelfPermission(PERMISSION_READ_WEATHER, null);
+            if (listener != null) {
+                sListeners.register(listener);
+            }
+        }
+
+        @Override
+        public void unregisterListener(IWeatherListener listener) {
+            if (listener != null) {
+                sListeners.unregister(listener);
+            }
+        }
+    };
 
     private BroadcastReceiver mScreenStateListener = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent intent) {
             if (DEBUG) Log.d(TAG, "screenStateListener:onReceive");
             if (Intent.ACTION_SCREEN_ON.equals(intent.getAction())) {
-                if (Config.isEnabled(context) && Config.isUpdateError(context)) {
+                if (!Config.isEnabled(context)) {
+                    return;
+                }
+                if (Config.isUpdateError(context)) {
                     Log.i(TAG, "screenStateListener trigger update after update error");
                     WeatherService.startUpdate(context);
+                } else if (System.currentTimeMillis() - Config.getLastUpdateTime(context)
+                        > RefreshPolicy.get(context).getInteractiveInterval()) {
+                    // the interval may have been stretched while the screen was off
+                    Log.i(TAG, "screenStateListener trigger update of outdated data");
+                    WeatherService.startUpdate(context);
                 }
             }
         }
@@ -99,29 +122,24 @@ public class WeatherService extends Service {
 
     @Override
     public IBinder onBind(Intent intent) {
-        return null;
+        return mBinder;
     }
 
     @Override
     public void onCreate() {
         super.onCreate();
         if (DEBUG) Log.d(TAG, "onCreate");
-        mHandlerThread = new HandlerThread("WeatherService Thread");
-        mHandlerThread.start();
-        mHandler = new Handler(mHandlerThread.getLooper());
-        PowerManager pm = (PowerManager) getSystemService(POWER_SERVICE);
-        mWakeLock = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, TAG);
-        mWakeLock.setReferenceCounted(true);
         registerScreenStateListener();
     }
 
     public static void startUpdate(Context context) {
-        start(context, ACTION_UPDATE);
+        startUpdate(context, UpdateScheduler.REASON_MANUAL);
     }
 
-    private static void start(Context context, String action) {
+    static void startUpdate(Context context, int reason) {
         Intent i = new Intent(context, WeatherService.class);
-        i.setAction(action);
+        i.setAction(ACTION_UPDATE);
+        i.putExtra(EXTRA_REASON, reason);
         context.startService(i);
     }
 
@@ -135,7 +153,7 @@ public class WeatherService extends Service {
     private static PendingIntent alarmPending(Context context) {
         Intent intent = new Intent(context, WeatherService.class);
         intent.setAction(ACTION_ALARM);
-        return PendingIntent.getService(context, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT);
+        return PendingIntent.getService(context, 0, intent, PendingIntent.FLAG_NO_CREATE);
     }
 
     @Override
@@ -147,62 +165,71 @@ public class WeatherService extends Service {
             return START_NOT_STICKY;
         }
 
-        if (mRunning) {
-            Log.w(TAG, "Service running ... do nothing");
-            return START_STICKY;
+        if (ACTION_ENABLE.equals(intent.getAction())) {
+            boolean enable = intent.getBooleanExtra(EXTRA_ENABLE, false);
+            if (DEBUG) Log.d(TAG, "Set enablement " + enable);
+            Config.setEnabled(this, enable);
+            if (!enable) {
+                cancelUpdate(this);
+            }
         }
 
-        mWakeLock.acquire();
-        try {
-            if (ACTION_ENABLE.equals(intent.getAction())) {
-                boolean enable = intent.getBooleanExtra(EXTRA_ENABLE, false);
-                if (DEBUG) Log.d(TAG, "Set enablement " + enable);
-                Config.setEnabled(this, enable);
-                if (!enable) {
-                    cancelUpdate(this);
-                }
-            }
+        if (!Config.isEnabled(this)) {
+            Log.w(TAG, "Service started, but not enabled ... stopping");
+            Intent errorIntent = new Intent(ACTION_ERROR);
+            errorIntent.putExtra(EXTRA_ERROR, EXTRA_ERROR_DISABLED);
+            sendBroadcast(errorIntent);
+            SnapshotMemory.publishIfCreated(this);
+            notifyListeners(this);
+            stopSelf();
+            return START_NOT_STICKY;
+        }
 
-            if (!Config.isEnabled(this)) {
-                Log.w(TAG, "Service started, but not enabled ... stopping");
-                Intent errorIntent = new Intent(ACTION_ERROR);
-                errorIntent.putExtra(EXTRA_ERROR, EXTRA_ERROR_DISABLED);
-                sendBroadcast(errorIntent);
-                stopSelf();
-                return START_NOT_STICKY;
-            }
+        if (ACTION_CANCEL_LOCATION_UPDATE.equals(intent.getAction())) {
+            Log.w(TAG, "Service started, but location timeout ... stopping");
+            WeatherLocationListener.cancel(this);
+            Intent errorIntent = new Intent(ACTION_ERROR);
+            errorIntent.putExtra(EXTRA_ERROR, EXTRA_ERROR_LOCATION);
+            sendBroadcast(errorIntent);
+            Config.setUpdateError(this, true);
+            return START_STICKY;
+        }
 
-            if (ACTION_CANCEL_LOCATION_UPDATE.equals(intent.getAction())) {
-                Log.w(TAG, "Service started, but location timeout ... stopping");
-                WeatherLocationListener.cancel(this);
-                Intent errorIntent = new Intent(ACTION_ERROR);
-                errorIntent.putExtra(EXTRA_ERROR, EXTRA_ERROR_LOCATION);
-                sendBroadcast(errorIntent);
-                Config.setUpdateError(this, true);
-                return START_STICKY;
-            }
+        if (ACTION_ALARM.equals(intent.getAction())) {
+            Log.w(TAG, "Legacy alarm ... rescheduling");
+            scheduleUpdate(this);
+            return START_STICKY;
+        }
 
-            if (!isNetworkAvailable()) {
-                if (DEBUG) Log.d(TAG, "Service started, but no network ... stopping");
-                Intent errorIntent = new Intent(ACTION_ERROR);
-                errorIntent.putExtra(EXTRA_ERROR, EXTRA_ERROR_NETWORK);
-                sendBroadcast(errorIntent);
-                Config.setUpdateError(this, true);
-                return START_STICKY;
-            }
+        if (!isNetworkAvailable()) {
+            if (DEBUG) Log.d(TAG, "Service started, but no network ... retry when connected");
+            Intent errorIntent = new Intent(ACTION_ERROR);
+            errorIntent.putExtra(EXTRA_ERROR, EXTRA_ERROR_NETWORK);
+            sendBroadcast(errorIntent);
+            Config.setUpdateError(this, true);
+            WeatherJobService.scheduleRetry(this);
+            return START_STICKY;
+        }
 
-            if (ACTION_ALARM.equals(intent.getAction())) {
-                Config.setLastAlarmTime(this);
-            }
-            if (DEBUG) Log.d(TAG, "updateWeather");
-            updateWeather();
-        } finally {
-            mWakeLock.release();
+        int reasons = intent.getIntExtra(EXTRA_REASON, UpdateScheduler.REASON_MANUAL);
+        if (intent.getBooleanExtra(EXTRA_FORCE, false)) {
+            reasons |= UpdateScheduler.REASON_FORCED;
         }
+        if (DEBUG) Log.d(TAG, "updateWeather");
+        UpdateScheduler.get(this).requestUpdate(reasons);
 
         return START_STICKY;
     }
 
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        RefreshPolicy.get(this).dump(pw);
+        CircuitBreaker.get(this).dump(pw);
+        Hedger.get().dump(pw);
+        ProviderChain.dump(pw);
+        pw.println(WeatherHttpCache.get(this));
+    }
+
     @Override
     public void onDestroy() {
         super.onDestroy();
@@ -216,140 +243,62 @@ public class WeatherService extends Service {
         return info != null && info.isConnected();
     }
 
-    private boolean doCheckLocationEnabled() {
-        return Settings.Secure.getInt(getContentResolver(), Settings.Secure.LOCATION_MODE, -1) != Settings.Secure.LOCATION_MODE_OFF;
-    }
-
-    private Location getCurrentLocation() {
-        LocationManager lm = (LocationManager) getSystemService(Context.LOCATION_SERVICE);
-        if (!doCheckLocationEnabled()) {
-            Log.w(TAG, "locations disabled");
-            return null;
-        }
-        Location location = lm.getLastKnownLocation(LocationManager.PASSIVE_PROVIDER);
-        if (DEBUG) Log.d(TAG, "Current location is " + location);
-
-        if (location != null && location.getAccuracy() > LOCATION_ACCURACY_THRESHOLD_METERS) {
-            Log.w(TAG, "Ignoring inaccurate location");
-            location = null;
-        }
-
-        // If lastKnownLocation is not present (because none of the apps in the
-        // device has requested the current location to the system yet) or outdated,
-        // then try to get the current location use the provider that best matches the criteria.
-        boolean needsUpdate = location == null;
-        if (location != null) {
-            long delta = System.currentTimeMillis() - location.getTime();
-            needsUpdate = delta > OUTDATED_LOCATION_THRESHOLD_MILLIS;
-        }
-        if (needsUpdate) {
-            if (DEBUG) Log.d(TAG, "Getting best location provider");
-            String locationProvider = lm.getBestProvider(sLocationCriteria, true);
-            if (TextUtils.isEmpty(locationProvider)) {
-                Log.e(TAG, "No available location providers matching criteria.");
-            } else {
-                WeatherLocationListener.registerIfNeeded(this, locationProvider);
-            }
-        }
-
-        return location;
-    }
-
     public static void scheduleUpdate(Context context) {
         cancelUpdate(context);
 
-        final long interval = ALARM_INTERVAL_BASE * Config.getUpdateInterval(context);
-        AlarmManager am = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
-        final long due = System.currentTimeMillis() + interval;
+        final long interval = RefreshPolicy.get(context).reset();
         Config.setLastAlarmTime(context);
 
-        if (DEBUG) Log.d(TAG, "Scheduling next update at " + new Date(due));
+        if (DEBUG) Log.d(TAG, "Scheduling next update at " + new Date(System.currentTimeMillis() + interval));
 
-        mAlarm = alarmPending(context);
-        am.setInexactRepeating(AlarmManager.RTC, due, interval, mAlarm);
+        WeatherJobService.schedule(context, interval);
         startUpdate(context);
     }
 
     public static void cancelUpdate(Context context) {
-        if (mAlarm != null) {
-            AlarmManager am = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
-            if (DEBUG) Log.d(TAG, "Cancel pending update");
+        if (DEBUG) Log.d(TAG, "Cancel pending update");
+        WeatherJobService.cancel(context);
 
-            am.cancel(mAlarm);
-            mAlarm = null;
+        PendingIntent alarm = alarmPending(context);
+        if (alarm != null) {
+            AlarmManager am = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+            am.cancel(alarm);
+            alarm.cancel();
         }
     }
 
-    private void updateWeather() {
-        mHandler.post(new Runnable() {
-            @Override
-            public void run() {
-                WeatherInfo w = null;
-                try {
-                    mRunning = true;
-                    mWakeLock.acquire();
-                    AbstractWeatherProvider provider = Config.getProvider(WeatherService.this);
-                    int i = 0;
-                    // retry max 3 times
-                    while(i < RETRY_MAX_NUM) {
-                        if (!Config.isCustomLocation(WeatherService.this)) {
-                            if (checkPermissions()) {
-                                Location location = getCurrentLocation();
-                                if (location != null) {
-                                    w = provider.getLocationWeather(location, Config.isMetric(WeatherService.this));
-                                } else {
-                                    Log.w(TAG, "no location");
-                                    // we are outa here
-                                    break;
-                                }
-                            } else {
-                                Log.w(TAG, "no location permissions");
-                                // we are outa here
-                                break;
-                            }
-                        } else if (Config.getLocationId(WeatherService.this) != null){
-                            w = provider.getCustomWeather(Config.getLocationId(WeatherService.this), Config.isMetric(WeatherService.this));
-                        } else {
-                            Log.w(TAG, "no valid custom location");
-                            // we are outa here
-                            break;
-                        }
-                        if (w != null) {
-                            Config.setWeatherData(WeatherService.this, w);
-                            WeatherContentProvider.updateCachedWeatherInfo(WeatherService.this);
-                            // we are outa here
-                            break;
-                        } else {
-                            if (!provider.shouldRetry()) {
-                                // some other error
-                                break;
-                            } else {
-                                Log.w(TAG, "retry count =" + i);
-                                try {
-                                    Thread.sleep(RETRY_DELAY_MS);
-                                } catch (InterruptedException e) {
-                                }
-                            }
-                        }
-                        i++;
-                    }
-                } finally {
-                    if (w == null) {
-                        // error
-                        Config.setUpdateError(WeatherService.this, true);
+    /**
+     * Tells all clients that the weather data or its state changed.
+     */
+    static void publishUpdate(Context context) {
+        Intent updateIntent = new Intent(ACTION_BROADCAST);
+        context.sendBroadcast(updateIntent);
+        SnapshotMemory.publishIfCreated(context);
+        notifyListeners(context);
+    }
+
+    // pushes the current snapshot to all bound listeners, a single bundle is
+    // shared by all of them
+    private static void notifyListeners(Context context) {
+        synchronized (sListeners) {
+            final int count = sListeners.beginBroadcast();
+            try {
+                if (count == 0) {
+                    return;
+                }
+                if (DEBUG) Log.d(TAG, "notifyListeners " + count);
+                final Bundle snapshot = WeatherContentProvider.getSnapshotBundle(context);
+                for (int i = 0; i < count; i++) {
+                    try {
+                        sListeners.getBroadcastItem(i).onWeatherUpdate(snapshot);
+                    } catch (RemoteException e) {
+                        // RemoteCallbackList drops dead listeners itself
                     }
-                    // send broadcast that something has changed
-                    Intent updateIntent = new Intent(ACTION_BROADCAST);
-                    sendBroadcast(updateIntent);
-                    mWakeLock.release();
-                    mRunning = false;
                 }
+            } finally {
+                sListeners.finishBroadcast();
             }
-         });
-    }
-
-    private boolean checkPermissions() {
-        return checkSelfPermission(Manifest.permission.ACCESS_FINE_LOCATION) == PackageManager.PERMISSION_GRANTED;
+        }
     }
 
     private void registerScreenStateListener() {
@@ -0,0 +1,230 @@
+/*
+ *  Copyright (C) 2015 The OmniROM Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.omnirom.omnijaws;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+import android.util.AtomicFile;
+import android.util.Log;
+
+/**
+ * Weather data and refresh state, kept apart from the settings in the
+ * default shared preferences.
+ *
+ * Everything lives in one file that is rewritten atomically as a whole,
+ * so a refresh costs a single write. The state is held in memory after
+ * the first access and the file is only written when something changed.
+ */
+class WeatherStore {
+    private static final String TAG = "WeatherService:WeatherStore";
+
+    private static final String FILE_NAME = "weather_store";
+    // written by the snapshot only format of the previous version
+    private static final String LEGACY_DATA_FILE = "weather_data";
+
+    private static final int MAGIC = 0x4f4a5354; // OJST
+    private static final int VERSION = 1;
+
+    private static WeatherStore sInstance;
+
+    private final Context mContext;
+    private final AtomicFile mFile;
+
+    private long mLastUpdate;
+    private long mLastAlarm;
+    private boolean mUpdateError;
+    private byte[] mSnapshot;
+    // parsed form of mSnapshot, created on demand
+    private WeatherInfo mWeatherData;
+
+    static synchronized WeatherStore get(Context context) {
+        if (sInstance == null) {
+            sInstance = new WeatherStore(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private WeatherStore(Context context) {
+        mContext = context;
+        mFile = new AtomicFile(new File(context.getFilesDir(), FILE_NAME));
+        if (!load()) {
+            migrate();
+        }
+    }
+
+    synchronized WeatherInfo getWeatherData() {
+        if (mWeatherData == null && mSnapshot != null) {
+            mWeatherData = WeatherInfo.fromSnapshot(mContext, mSnapshot);
+        }
+        return mWeatherData;
+    }
+
+    synchronized void setWeatherData(WeatherInfo data, long updateTime) {
+        mWeatherData = data;
+        mSnapshot = data.toSnapshot();
+        mLastUpdate = updateTime;
+        write();
+    }
+
+    synchronized void clearWeatherData() {
+        if (mSnapshot == null && mLastUpdate == 0) {
+            return;
+        }
+        mWeatherData = null;
+        mSnapshot = null;
+        mLastUpdate = 0;
+        write();
+    }
+
+    synchronized long getLastUpdateTime() {
+        return mLastUpdate;
+    }
+
+    synchronized void clearUpdateTimes() {
+        if (mLastUpdate == 0 && mLastAlarm == 0) {
+            return;
+        }
+        mLastUpdate = 0;
+        mLastAlarm = 0;
+        write();
+    }
+
+    synchronized long getLastAlarmTime() {
+        return mLastAlarm;
+    }
+
+    synchronized void setLastAlarmTime(long time) {
+        if (mLastAlarm == time) {
+            return;
+        }
+        mLastAlarm = time;
+        write();
+    }
+
+    synchronized boolean isUpdateError() {
+        return mUpdateError;
+    }
+
+    synchronized void setUpdateError(boolean value) {
+        if (mUpdateError == value) {
+            return;
+        }
+        mUpdateError = value;
+        write();
+    }
+
+    private boolean load() {
+        final byte[] bytes;
+        try {
+            bytes = mFile.readFully();
+        } catch (FileNotFoundException e) {
+            return false;
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to read " + mFile.getBaseFile(), e);
+            return true;
+        }
+        try {
+            ByteBuffer in = ByteBuffer.wrap(bytes);
+            if (in.getInt() != MAGIC || in.getInt() > VERSION) {
+                Log.w(TAG, "Ignoring unknown store format");
+                return true;
+            }
+            mLastUpdate = in.getLong();
+            mLastAlarm = in.getLong();
+            mUpdateError = in.get() != 0;
+            int length = in.getInt();
+            if (length >= 0) {
+                int start = in.position();
+                mSnapshot = Arrays.copyOfRange(bytes, start, start + length);
+            }
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            Log.w(TAG, "Ignoring damaged store", e);
+        }
+        return true;
+    }
+
+    private void write() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(
+                512 + (mSnapshot != null ? mSnapshot.length : 0));
+        DataOutputStream data = new DataOutputStream(bytes);
+        FileOutputStream out = null;
+        try {
+            data.writeInt(MAGIC);
+            data.writeInt(VERSION);
+            data.writeLong(mLastUpdate);
+            data.writeLong(mLastAlarm);
+            data.writeBoolean(mUpdateError);
+            if (mSnapshot != null) {
+                data.writeInt(mSnapshot.length);
+                data.write(mSnapshot);
+            } else {
+                data.writeInt(-1);
+            }
+            data.flush();
+
+            out = mFile.startWrite();
+            bytes.writeTo(out);
+            mFile.finishWrite(out);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to write " + mFile.getBaseFile(), e);
+            if (out != null) {
+                mFile.failWrite(out);
+            }
+        }
+    }
+
+    // picks up the state older versions stored in the default shared preferences
+    private void migrate() {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(mContext);
+        mLastUpdate = prefs.getLong(Config.PREF_KEY_LAST_UPDATE, 0);
+        mLastAlarm = prefs.getLong(Config.PREF_KEY_LAST_ALARM, 0);
+        mUpdateError = prefs.getBoolean(Config.PREF_KEY_UPDATE_ERROR, false);
+
+        AtomicFile legacyFile = new AtomicFile(new File(mContext.getFilesDir(), LEGACY_DATA_FILE));
+        try {
+            mSnapshot = legacyFile.readFully();
+        } catch (IOException e) {
+            String legacyData = prefs.getString(Config.PREF_KEY_WEATHER_DATA, null);
+            WeatherInfo data = WeatherInfo.fromSerializedString(mContext, legacyData);
+            if (data != null) {
+                mSnapshot = data.toSnapshot();
+                mWeatherData = data;
+            }
+        }
+
+        write();
+        legacyFile.delete();
+        prefs.edit()
+                .remove(Config.PREF_KEY_WEATHER_DATA)
+                .remove(Config.PREF_KEY_LAST_UPDATE)
+                .remove(Config.PREF_KEY_LAST_ALARM)
+                .remove(Config.PREF_KEY_UPDATE_ERROR)
+                .apply();
+    }
+}
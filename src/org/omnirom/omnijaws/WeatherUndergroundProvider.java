@@ -23,7 +23,6 @@ public class WeatherUndergroundProvider extends AbstractWeatherProvider {
     private static final String SELECTION_LOCATION = "geocode=%f,%f";
     private static final String SELECTION_ID = "placeid=%s";
     private static final String API_KEY = "YOUR_WUG_API_KEY";
-    private static final String API_KEY_PREFERENCE = "custom_api_key";
 
 
     private static final String URL_LOCATION =
@@ -83,17 +82,14 @@ public class WeatherUndergroundProvider extends AbstractWeatherProvider {
 
         String units = metric ? "m" : "e";
         String conditionUrl = String.format(Locale.US, URL_WEATHER, getAPIKey(), getLanguageCode(), selection, units);
-        String conditionResponse = retrieve(conditionUrl);
-        if (conditionResponse == null) {
-            return null;
-        }
-        log(TAG, "Condition URL = " + conditionUrl + " returning a response of " + conditionResponse);
-
         String forecastUrl = String.format(Locale.US, URL_FORECAST, getAPIKey(), getLanguageCode(), selection, units);
-        String forecastResponse = retrieve(forecastUrl);
-        if (forecastResponse == null) {
+        String[] responses = retrieveAll(conditionUrl, forecastUrl);
+        if (responses == null) {
             return null;
         }
+        String conditionResponse = responses[0];
+        String forecastResponse = responses[1];
+        log(TAG, "Condition URL = " + conditionUrl + " returning a response of " + conditionResponse);
         log(TAG, "Forcast URL = " + forecastUrl + " returning a response of " + forecastResponse);
 
         try {
@@ -182,7 +178,7 @@ public class WeatherUndergroundProvider extends AbstractWeatherProvider {
 
     private String getAPIKey() {
         String customKey = PreferenceManager.getDefaultSharedPreferences(mContext)
-                .getString(API_KEY_PREFERENCE, "");
+                .getString(Config.PREF_KEY_CUSTOM_API_KEY, "");
         if (TextUtils.isEmpty(customKey) && customKey.length()!= 32) {
             return mContext.getResources().getString(R.string.wug_api_key, API_KEY);
         } else {
@@ -0,0 +1,168 @@
+/*
+ *  Copyright (C) 2015 The OmniROM Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.omnirom.omnijaws;
+
+import android.Manifest;
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.location.Criteria;
+import android.location.Location;
+import android.location.LocationManager;
+import android.provider.Settings;
+import android.text.TextUtils;
+import android.util.Log;
+
+/**
+ * Fetches and stores new weather data for the current config, runs on
+ * the UpdateScheduler thread only.
+ */
+class WeatherUpdater {
+    private static final String TAG = "WeatherService:WeatherUpdater";
+    private static final boolean DEBUG = false;
+
+    private static final float LOCATION_ACCURACY_THRESHOLD_METERS = 50000;
+    private static final long OUTDATED_LOCATION_THRESHOLD_MILLIS = 10L * 60L * 1000L; // 10 minutes
+
+    static final int RESULT_SUCCESS = 0;
+    static final int RESULT_FAILED = 1;
+
+    private static final Criteria sLocationCriteria;
+    static {
+        sLocationCriteria = new Criteria();
+        sLocationCriteria.setPowerRequirement(Criteria.POWER_LOW);
+        sLocationCriteria.setAccuracy(Criteria.ACCURACY_COARSE);
+        sLocationCriteria.setCostAllowed(false);
+    }
+
+    private final Context mContext;
+
+    WeatherUpdater(Context context) {
+        mContext = context;
+    }
+
+    /**
+     * Makes a single attempt through the ProviderChain. If a provider
+     * failed a retry job is scheduled after its circuit breaker delay.
+     *
+     * @return one of the RESULT_ constants
+     */
+    int update(int reasons) {
+        if (DEBUG) Log.d(TAG, "update for " + UpdateScheduler.reasonsToString(reasons));
+        WeatherInfo w = null;
+        try {
+            final Config.Snapshot config = Config.get(mContext);
+            final ProviderChain chain = new ProviderChain(mContext, config);
+            if (!chain.isAvailable()) {
+                Log.w(TAG, "no provider available, skipping update");
+                return RESULT_FAILED;
+            }
+            if (!config.customLocation) {
+                if (checkPermissions()) {
+                    Location location = getCurrentLocation();
+                    if (location != null) {
+                        w = chain.getLocationWeather(location);
+                    } else {
+                        Log.w(TAG, "no location");
+                        return RESULT_FAILED;
+                    }
+                } else {
+                    Log.w(TAG, "no location permissions");
+                    return RESULT_FAILED;
+                }
+            } else if (config.locationId != null){
+                w = chain.getCustomWeather(config.locationId);
+            } else {
+                Log.w(TAG, "no valid custom location");
+                return RESULT_FAILED;
+            }
+            if (w != null) {
+                final WeatherInfo previous = Config.getWeatherData(mContext);
+                Config.setWeatherData(mContext, w);
+                WeatherContentProvider.updateCachedWeatherInfo(mContext);
+                updateInterval(previous, w);
+                return RESULT_SUCCESS;
+            }
+            if (chain.shouldRetry()) {
+                final long delay = chain.getRetryDelay();
+                Log.w(TAG, "update failed, retry in " + delay / 1000 + "s");
+                WeatherJobService.scheduleRetry(mContext, delay);
+            }
+            return RESULT_FAILED;
+        } finally {
+            if (w == null) {
+                // error
+                Config.setUpdateError(mContext, true);
+            }
+            // send broadcast that something has changed
+            WeatherService.publishUpdate(mContext);
+        }
+    }
+
+    private void updateInterval(WeatherInfo previous, WeatherInfo current) {
+        // the policy state does not survive the process, the job does
+        final long oldInterval = WeatherJobService.getScheduledInterval(mContext);
+        final long interval = RefreshPolicy.get(mContext).onWeatherUpdated(previous, current);
+        if (interval != oldInterval) {
+            Log.i(TAG, "refresh interval " + oldInterval / 60000 + "min -> " + interval / 60000 + "min");
+            WeatherJobService.schedule(mContext, interval);
+        }
+    }
+
+    private boolean checkPermissions() {
+        return mContext.checkSelfPermission(Manifest.permission.ACCESS_FINE_LOCATION) == PackageManager.PERMISSION_GRANTED;
+    }
+
+    private boolean doCheckLocationEnabled() {
+        return Settings.Secure.getInt(mContext.getContentResolver(), Settings.Secure.LOCATION_MODE, -1) != Settings.Secure.LOCATION_MODE_OFF;
+    }
+
+    private Location getCurrentLocation() {
+        LocationManager lm = (LocationManager) mContext.getSystemService(Context.LOCATION_SERVICE);
+        if (!doCheckLocationEnabled()) {
+            Log.w(TAG, "locations disabled");
+            return null;
+        }
+        Location location = lm.getLastKnownLocation(LocationManager.PASSIVE_PROVIDER);
+        if (DEBUG) Log.d(TAG, "Current location is " + location);
+
+        if (location != null && location.getAccuracy() > LOCATION_ACCURACY_THRESHOLD_METERS) {
+            Log.w(TAG, "Ignoring inaccurate location");
+            location = null;
+        }
+
+        // If lastKnownLocation is not present (because none of the apps in the
+        // device has requested the current location to the system yet) or outdated,
+        // then try to get the current location use the provider that best matches the criteria.
+        boolean needsUpdate = location == null;
+        if (location != null) {
+            long delta = System.currentTimeMillis() - location.getTime();
+            needsUpdate = delta > OUTDATED_LOCATION_THRESHOLD_MILLIS;
+        }
+        if (needsUpdate) {
+            if (DEBUG) Log.d(TAG, "Getting best location provider");
+            String locationProvider = lm.getBestProvider(sLocationCriteria, true);
+            if (TextUtils.isEmpty(locationProvider)) {
+                Log.e(TAG, "No available location providers matching criteria.");
+            } else {
+                WeatherLocationListener.registerIfNeeded(mContext, locationProvider);
+            }
+        }
+
+        return location;
+    }
+}
@@ -38,9 +38,7 @@ import org.xml.sax.SAXException;
 import org.xml.sax.helpers.DefaultHandler;
 
 import android.content.Context;
-import android.location.Address;
 import android.location.Location;
-import android.location.Geocoder;
 import android.net.Uri;
 import android.text.Html;
 import android.text.TextUtils;
@@ -257,19 +255,12 @@ public class YahooWeatherProvider extends AbstractWeatherProvider  {
     }
 
     private String locateCity(Location location) {
-        try {
-            Geocoder geocoder = new Geocoder(mContext, Locale.getDefault());
-            List<Address> addresses =
-                    geocoder.getFromLocation(location.getLatitude(), location.getLongitude(), 1);
-            if (addresses.size() > 0) {
-                return addresses.get(0).getLocality();
-            } else {
-                Log.e(TAG, "No city data");
-            }
-        } catch (IOException e) {
-            Log.e(TAG, "Failed to retrieve city", e);
+        String city = GeocoderCache.get(mContext).getLocality(
+                location.getLatitude(), location.getLongitude());
+        if (city == null) {
+            Log.e(TAG, "No city data");
         }
-        return null;
+        return city;
     }
 
     public WeatherInfo getLocationWeather(Location location, boolean metric) {
@@ -17,23 +17,37 @@
 */
 package org.omnirom.omnijaws.client;
 
+import java.nio.ByteBuffer;
 import java.text.DecimalFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 
+import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
+import android.content.ServiceConnection;
 import android.content.pm.PackageManager;
 import android.content.pm.PackageManager.NameNotFoundException;
 import android.content.res.Resources;
 import android.database.Cursor;
 import android.graphics.drawable.Drawable;
 import android.net.Uri;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.RemoteException;
+import android.os.SharedMemory;
+import android.system.ErrnoException;
 import android.util.Log;
 
 import org.omnirom.omnijaws.Config;
+import org.omnirom.omnijaws.IWeatherListener;
+import org.omnirom.omnijaws.IWeatherService;
+import org.omnirom.omnijaws.SnapshotMemory;
 import org.omnirom.omnijaws.R;
 
 public class OmniJawsClient {
@@ -44,6 +58,8 @@ public class OmniJawsClient {
             = Uri.parse("content://org.omnirom.omnijaws.provider/weather");
     public static final Uri SETTINGS_URI
             = Uri.parse("content://org.omnirom.omnijaws.provider/settings");
+    public static final Uri SNAPSHOT_URI
+            = Uri.parse("content://org.omnirom.omnijaws.provider/snapshot");
 
     private static final String ICON_PACKAGE_DEFAULT = "org.omnirom.omnijaws";
     private static final String ICON_PREFIX_DEFAULT = "weather";
@@ -64,6 +80,24 @@ public class OmniJawsClient {
             "forecast_date"
     };
 
+    private static final String[] SNAPSHOT_PROJECTION = new String[] {
+            "city",
+            "wind_speed",
+            "wind_direction",
+            "condition_code",
+            "temperature",
+            "humidity",
+            "condition",
+            "time_stamp",
+            "forecast_low",
+            "forecast_high",
+            "forecast_condition",
+            "forecast_condition_code",
+            "forecast_date",
+            "enabled",
+            "units"
+    };
+
     final String[] SETTINGS_PROJECTION = new String[] {
             "enabled",
             "units"
@@ -106,10 +140,57 @@ public class OmniJawsClient {
         }
     }
 
+    public interface OmniJawsObserver {
+        void weatherUpdated();
+    }
+
     private Context mContext;
     private WeatherInfo mCachedInfo;
     private boolean mEnabled;
     private boolean mMetric;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final List<OmniJawsObserver> mObservers = new ArrayList<OmniJawsObserver>();
+    private IWeatherService mService;
+    private boolean mBound;
+    // read-only mapping of the service snapshot memory while bound, guarded by itself
+    private SharedMemory mSnapshotMemory;
+    private ByteBuffer mSnapshotBuffer;
+    private final Object mSnapshotLock = new Object();
+
+    private final IWeatherListener mWeatherListener = new IWeatherListener.Stub() {
+        @Override
+        public void onWeatherUpdate(final Bundle snapshot) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    applySnapshot(snapshot);
+                }
+            });
+        }
+    };
+
+    private final ServiceConnection mConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder binder) {
+            mService = IWeatherService.Stub.asInterface(binder);
+            try {
+                mService.registerListener(mWeatherListener);
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O_MR1) {
+                    mapSnapshotMemory(mService.getSnapshotMemory());
+                }
+                applySnapshot(mService.getWeatherSnapshot());
+            } catch (RemoteException | SecurityException e) {
+                Log.w(TAG, "Failed to register weather listener", e);
+            }
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            // rebound by the system once the service is back, with a new region
+            mService = null;
+            unmapSnapshotMemory();
+        }
+    };
 
     public OmniJawsClient(Context context) {
         mContext = context;
@@ -158,76 +239,277 @@ public class OmniJawsClient {
         return formatted;
     }
 
+    /**
+     * Reads weather data and the settings it depends on with a single
+     * query. Columns are looked up by name so missing ones stay unset.
+     */
     public void queryWeather() {
-        if (!isOmniJawsEnabled()) {
-            Log.w(TAG, "queryWeather while disabled");
-            mCachedInfo = null;
+        if (readSnapshotMemory()) {
+            if (DEBUG) Log.d(TAG, "queryWeather from memory " + mCachedInfo);
             return;
         }
-        Cursor c = mContext.getContentResolver().query(WEATHER_URI, WEATHER_PROJECTION,
-                null, null, null);
         mCachedInfo = null;
-        if (c != null) {
-            try {
-                int count = c.getCount();
-                if (count > 0) {
-                    mCachedInfo = new WeatherInfo();
-                    List<DayForecast> forecastList = new ArrayList<DayForecast>();
-                    int i = 0;
-                    for (i = 0; i < count; i++) {
-                        c.moveToPosition(i);
-                        if (i == 0) {
-                            mCachedInfo.city = c.getString(0);
-                            mCachedInfo.windSpeed = getFormattedValue(c.getFloat(1));
-                            mCachedInfo.windDirection = String.valueOf(c.getInt(2)) + "\u00b0";
-                            mCachedInfo.conditionCode = c.getInt(3);
-                            mCachedInfo.temp = getFormattedValue(c.getFloat(4));
-                            mCachedInfo.humidity = c.getString(5);
-                            mCachedInfo.condition = c.getString(6);
-                            mCachedInfo.timeStamp = Long.valueOf(c.getString(11));
-                        } else {
-                            DayForecast day = new DayForecast();
-                            day.low = getFormattedValue(c.getFloat(7));
-                            day.high = getFormattedValue(c.getFloat(8));
-                            day.condition = c.getString(9);
-                            day.conditionCode = c.getInt(10);
-                            day.date = c.getString(12);
-                            forecastList.add(day);
-                        }
-                    }
-                    mCachedInfo.forecasts = forecastList;
-                }
-            } finally {
-                c.close();
+        if (!mEnabled) {
+            return;
+        }
+        final Cursor c = mContext.getContentResolver().query(SNAPSHOT_URI, SNAPSHOT_PROJECTION,
+                null, null, null);
+        if (c == null) {
+            return;
+        }
+        try {
+            if (!c.moveToFirst()) {
+                return;
+            }
+            final int enabledIndex = c.getColumnIndex("enabled");
+            final int unitsIndex = c.getColumnIndex("units");
+            if (enabledIndex != -1 && c.getInt(enabledIndex) != 1) {
+                Log.w(TAG, "queryWeather while disabled");
+                return;
+            }
+            if (unitsIndex != -1) {
+                mMetric = c.getInt(unitsIndex) == 0;
+            }
+            final int cityIndex = c.getColumnIndex("city");
+            if (cityIndex == -1 || c.isNull(cityIndex)) {
+                // no weather data yet
+                return;
             }
+            final int windSpeedIndex = c.getColumnIndex("wind_speed");
+            final int windDirectionIndex = c.getColumnIndex("wind_direction");
+            final int conditionCodeIndex = c.getColumnIndex("condition_code");
+            final int temperatureIndex = c.getColumnIndex("temperature");
+            final int humidityIndex = c.getColumnIndex("humidity");
+            final int conditionIndex = c.getColumnIndex("condition");
+            final int timeStampIndex = c.getColumnIndex("time_stamp");
+            final int lowIndex = c.getColumnIndex("forecast_low");
+            final int highIndex = c.getColumnIndex("forecast_high");
+            final int forecastConditionIndex = c.getColumnIndex("forecast_condition");
+            final int forecastConditionCodeIndex = c.getColumnIndex("forecast_condition_code");
+            final int dateIndex = c.getColumnIndex("forecast_date");
+
+            WeatherInfo info = new WeatherInfo();
+            info.city = c.getString(cityIndex);
+            info.windSpeed = getFormattedValue(getFloat(c, windSpeedIndex));
+            info.windDirection = String.valueOf(getInt(c, windDirectionIndex)) + "\u00b0";
+            info.conditionCode = getInt(c, conditionCodeIndex);
+            info.temp = getFormattedValue(getFloat(c, temperatureIndex));
+            info.humidity = getString(c, humidityIndex);
+            info.condition = getString(c, conditionIndex);
+            info.timeStamp = timeStampIndex != -1 ? c.getLong(timeStampIndex) : 0L;
+            info.tempUnits = getTemperatureUnit();
+            info.windUnits = getWindUnit();
+
+            List<DayForecast> forecastList = new ArrayList<DayForecast>(c.getCount() - 1);
+            while (c.moveToNext()) {
+                DayForecast day = new DayForecast();
+                day.low = getFormattedValue(getFloat(c, lowIndex));
+                day.high = getFormattedValue(getFloat(c, highIndex));
+                day.condition = getString(c, forecastConditionIndex);
+                day.conditionCode = getInt(c, forecastConditionCodeIndex);
+                day.date = getString(c, dateIndex);
+                forecastList.add(day);
+            }
+            info.forecasts = forecastList;
+            mCachedInfo = info;
+        } finally {
+            c.close();
         }
-        updateUnits();
         if (DEBUG) Log.d(TAG, "queryWeather " + mCachedInfo);
     }
 
-    private boolean isOmniJawsServiceInstalled() {
-        return isAvailableApp(SERVICE_PACKAGE);
+    private static String getString(Cursor c, int index) {
+        return index != -1 ? c.getString(index) : null;
     }
 
-    public boolean isOmniJawsEnabled() {
-        if (!mEnabled) {
-            return false;
+    private static int getInt(Cursor c, int index) {
+        return index != -1 ? c.getInt(index) : 0;
+    }
+
+    private static float getFloat(Cursor c, int index) {
+        return index != -1 ? c.getFloat(index) : 0f;
+    }
+
+    /**
+     * Observers are called on the main thread whenever the service pushes
+     * new weather data, getWeatherInfo() then already returns it. The first
+     * observer binds to the service, removing the last one unbinds.
+     * Must be called on the main thread.
+     */
+    public void addObserver(OmniJawsObserver observer) {
+        if (mObservers.isEmpty()) {
+            bindService();
         }
-        final Cursor c = mContext.getContentResolver().query(SETTINGS_URI, SETTINGS_PROJECTION,
-                null, null, null);
-        if (c != null) {
-            int count = c.getCount();
-            if (count == 1) {
-                c.moveToPosition(0);
-                return c.getInt(0) == 1;
+        mObservers.add(observer);
+    }
+
+    public void removeObserver(OmniJawsObserver observer) {
+        mObservers.remove(observer);
+        if (mObservers.isEmpty()) {
+            unbindService();
+        }
+    }
+
+    private void bindService() {
+        if (!mEnabled || mBound) {
+            return;
+        }
+        Intent intent = new Intent().setClassName(SERVICE_PACKAGE, SERVICE_PACKAGE + ".WeatherService");
+        mBound = mContext.bindService(intent, mConnection, Context.BIND_AUTO_CREATE);
+        if (!mBound) {
+            Log.w(TAG, "Failed to bind weather service");
+        }
+    }
+
+    private void unbindService() {
+        if (!mBound) {
+            return;
+        }
+        if (mService != null) {
+            try {
+                mService.unregisterListener(mWeatherListener);
+            } catch (RemoteException e) {
+            }
+            mService = null;
+        }
+        unmapSnapshotMemory();
+        mContext.unbindService(mConnection);
+        mBound = false;
+    }
+
+    private void mapSnapshotMemory(SharedMemory memory) {
+        if (memory == null) {
+            return;
+        }
+        synchronized (mSnapshotLock) {
+            unmapSnapshotMemory();
+            try {
+                mSnapshotBuffer = memory.mapReadOnly();
+                mSnapshotMemory = memory;
+            } catch (ErrnoException e) {
+                Log.w(TAG, "Failed to map snapshot memory", e);
+                memory.close();
+            }
+        }
+    }
+
+    private void unmapSnapshotMemory() {
+        synchronized (mSnapshotLock) {
+            if (mSnapshotMemory != null) {
+                SharedMemory.unmap(mSnapshotBuffer);
+                mSnapshotMemory.close();
+                mSnapshotMemory = null;
+                mSnapshotBuffer = null;
+            }
+        }
+    }
+
+    /**
+     * @return true if the weather could be read from the shared memory
+     * of the bound service, no IPC needed then
+     */
+    private boolean readSnapshotMemory() {
+        final byte[] data;
+        synchronized (mSnapshotLock) {
+            if (mSnapshotBuffer == null) {
+                return false;
             }
+            data = SnapshotMemory.read(mSnapshotBuffer);
+        }
+        if (data == null) {
+            return false;
+        }
+        if (data.length == 0) {
+            mCachedInfo = null;
+            return true;
+        }
+        org.omnirom.omnijaws.WeatherInfo weather =
+                org.omnirom.omnijaws.WeatherInfo.fromSnapshot(mContext, data);
+        if (weather == null) {
+            return false;
         }
+        mMetric = weather.isMetric();
+        WeatherInfo info = new WeatherInfo();
+        info.city = weather.getCity();
+        info.windSpeed = getFormattedValue(weather.getWindSpeed());
+        info.windDirection = String.valueOf(weather.getWindDirection()) + "\u00b0";
+        info.conditionCode = weather.getConditionCode();
+        info.temp = getFormattedValue(weather.getTemperature());
+        info.humidity = weather.getFormattedHumidity();
+        info.condition = weather.getCondition();
+        info.timeStamp = weather.getTimestamp();
+        info.tempUnits = getTemperatureUnit();
+        info.windUnits = getWindUnit();
+        List<DayForecast> forecastList = new ArrayList<DayForecast>();
+        for (org.omnirom.omnijaws.WeatherInfo.DayForecast d : weather.getForecasts()) {
+            DayForecast day = new DayForecast();
+            day.low = getFormattedValue(d.getLow());
+            day.high = getFormattedValue(d.getHigh());
+            day.condition = d.getCondition(mContext);
+            day.conditionCode = d.getConditionCode();
+            day.date = d.date;
+            forecastList.add(day);
+        }
+        info.forecasts = forecastList;
+        mCachedInfo = info;
         return true;
     }
 
-    private void updateUnits() {
+    private void applySnapshot(Bundle snapshot) {
+        mCachedInfo = snapshot != null ? readSnapshot(snapshot) : null;
+        if (DEBUG) Log.d(TAG, "applySnapshot " + mCachedInfo);
+        for (OmniJawsObserver observer : new ArrayList<OmniJawsObserver>(mObservers)) {
+            observer.weatherUpdated();
+        }
+    }
+
+    // same keys and meaning as the /snapshot columns
+    private WeatherInfo readSnapshot(Bundle snapshot) {
+        if (snapshot.getInt("enabled", 1) != 1) {
+            return null;
+        }
+        if (snapshot.containsKey("units")) {
+            mMetric = snapshot.getInt("units") == 0;
+        }
+        if (snapshot.getString("city") == null) {
+            return null;
+        }
+        WeatherInfo info = new WeatherInfo();
+        info.city = snapshot.getString("city");
+        info.windSpeed = getFormattedValue(snapshot.getFloat("wind_speed"));
+        info.windDirection = String.valueOf(snapshot.getInt("wind_direction")) + "\u00b0";
+        info.conditionCode = snapshot.getInt("condition_code");
+        info.temp = getFormattedValue(snapshot.getFloat("temperature"));
+        info.humidity = snapshot.getString("humidity");
+        info.condition = snapshot.getString("condition");
+        info.timeStamp = snapshot.getLong("time_stamp");
+        info.tempUnits = getTemperatureUnit();
+        info.windUnits = getWindUnit();
+
+        List<DayForecast> forecastList = new ArrayList<DayForecast>();
+        ArrayList<Bundle> days = snapshot.getParcelableArrayList("forecasts");
+        if (days != null) {
+            for (Bundle b : days) {
+                DayForecast day = new DayForecast();
+                day.low = getFormattedValue(b.getFloat("forecast_low"));
+                day.high = getFormattedValue(b.getFloat("forecast_high"));
+                day.condition = b.getString("forecast_condition");
+                day.conditionCode = b.getInt("forecast_condition_code");
+                day.date = b.getString("forecast_date");
+                forecastList.add(day);
+            }
+        }
+        info.forecasts = forecastList;
+        return info;
+    }
+
+    private boolean isOmniJawsServiceInstalled() {
+        return isAvailableApp(SERVICE_PACKAGE);
+    }
+
+    public boolean isOmniJawsEnabled() {
         if (!mEnabled) {
-            return;
+            return false;
         }
         final Cursor c = mContext.getContentResolver().query(SETTINGS_URI, SETTINGS_PROJECTION,
                 null, null, null);
@@ -235,13 +517,10 @@ public class OmniJawsClient {
             int count = c.getCount();
             if (count == 1) {
                 c.moveToPosition(0);
-                mMetric = c.getInt(1) == 0;
-                if (mCachedInfo != null) {
-                    mCachedInfo.tempUnits = getTemperatureUnit();
-                    mCachedInfo.windUnits = getWindUnit();
-                }
+                return c.getInt(0) == 1;
             }
         }
+        return true;
     }
 
     private String getTemperatureUnit() {
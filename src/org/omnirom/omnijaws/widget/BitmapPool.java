@@ -0,0 +1,77 @@
+/*
+* Copyright (C) 2017 The OmniROM Project
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 2 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program. If not, see <http://www.gnu.org/licenses/>.
+*
+*/
+package org.omnirom.omnijaws.widget;
+
+import android.graphics.Bitmap;
+import android.util.LongSparseArray;
+
+import java.util.ArrayDeque;
+
+/**
+ * Scratch bitmaps for the widget render path, bucketed by exact size.
+ * Only intermediate bitmaps may be released here - bitmaps handed to
+ * RemoteViews or the icon cache must never come back to the pool.
+ */
+class BitmapPool {
+    private static final int MAX_POOL_BYTES = 1024 * 1024;
+
+    // (width << 32 | height) -> free bitmaps of that size
+    private static final LongSparseArray<ArrayDeque<Bitmap>> sBuckets = new LongSparseArray<>();
+    private static int sPoolBytes;
+
+    private BitmapPool() {
+    }
+
+    private static long getKey(int width, int height) {
+        return ((long) width << 32) | (height & 0xffffffffL);
+    }
+
+    /**
+     * @return a cleared ARGB_8888 bitmap of the given size
+     */
+    static synchronized Bitmap acquire(int width, int height) {
+        ArrayDeque<Bitmap> bucket = sBuckets.get(getKey(width, height));
+        Bitmap bitmap = bucket != null ? bucket.poll() : null;
+        if (bitmap == null) {
+            return Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        }
+        sPoolBytes -= bitmap.getByteCount();
+        bitmap.eraseColor(0);
+        return bitmap;
+    }
+
+    static synchronized void release(Bitmap bitmap) {
+        if (bitmap.isRecycled() || !bitmap.isMutable()
+                || bitmap.getConfig() != Bitmap.Config.ARGB_8888) {
+            return;
+        }
+        final int size = bitmap.getByteCount();
+        if (sPoolBytes + size > MAX_POOL_BYTES) {
+            bitmap.recycle();
+            return;
+        }
+        final long key = getKey(bitmap.getWidth(), bitmap.getHeight());
+        ArrayDeque<Bitmap> bucket = sBuckets.get(key);
+        if (bucket == null) {
+            bucket = new ArrayDeque<>();
+            sBuckets.put(key, bucket);
+        }
+        bucket.push(bitmap);
+        sPoolBytes += size;
+    }
+}
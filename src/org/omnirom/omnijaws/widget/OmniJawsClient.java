@@ -25,6 +25,7 @@ import android.content.res.Resources;
 import android.database.Cursor;
 import android.graphics.drawable.Drawable;
 import android.net.Uri;
+import android.text.TextUtils;
 import android.util.Log;
 
 import org.omnirom.omnijaws.R;
@@ -43,6 +44,8 @@ public class OmniJawsClient {
             = Uri.parse("content://org.omnirom.omnijaws.provider/weather");
     public static final Uri SETTINGS_URI
             = Uri.parse("content://org.omnirom.omnijaws.provider/settings");
+    public static final Uri SNAPSHOT_URI
+            = Uri.parse("content://org.omnirom.omnijaws.provider/snapshot");
 
     private static final String ICON_PACKAGE_DEFAULT = "org.omnirom.omnijaws";
     private static final String ICON_PREFIX_DEFAULT = "outline";
@@ -64,6 +67,25 @@ public class OmniJawsClient {
             "pin_wheel"
     };
 
+    private static final String[] SNAPSHOT_PROJECTION = new String[] {
+            "city",
+            "wind_speed",
+            "wind_direction",
+            "condition_code",
+            "temperature",
+            "humidity",
+            "condition",
+            "time_stamp",
+            "pin_wheel",
+            "forecast_low",
+            "forecast_high",
+            "forecast_condition",
+            "forecast_condition_code",
+            "forecast_date",
+            "enabled",
+            "units"
+    };
+
     final String[] SETTINGS_PROJECTION = new String[] {
             "enabled",
             "units"
@@ -155,54 +177,92 @@ public class OmniJawsClient {
         return formatted;
     }
 
+    /**
+     * Reads weather data and the settings it depends on with a single
+     * query. Columns are looked up by name so missing ones stay unset.
+     */
     public void queryWeather() {
-        if (!isOmniJawsEnabled()) {
-            Log.w(TAG, "queryWeather while disabled");
-            mCachedInfo = null;
+        mCachedInfo = null;
+        final Cursor c = mContext.getContentResolver().query(SNAPSHOT_URI, SNAPSHOT_PROJECTION,
+                null, null, null);
+        if (c == null) {
             return;
         }
-        Cursor c = mContext.getContentResolver().query(WEATHER_URI, WEATHER_PROJECTION,
-                null, null, null);
-        mCachedInfo = null;
-        if (c != null) {
-            try {
-                int count = c.getCount();
-                if (count > 0) {
-                    mCachedInfo = new WeatherInfo();
-                    List<DayForecast> forecastList = new ArrayList<DayForecast>();
-                    int i = 0;
-                    for (i = 0; i < count; i++) {
-                        c.moveToPosition(i);
-                        if (i == 0) {
-                            mCachedInfo.city = c.getString(0);
-                            mCachedInfo.windSpeed = getFormattedValue(c.getFloat(1));
-                            mCachedInfo.windDirection = String.valueOf(c.getInt(2)) + "\u00b0";
-                            mCachedInfo.conditionCode = c.getInt(3);
-                            mCachedInfo.temp = getFormattedValue(c.getFloat(4));
-                            mCachedInfo.humidity = c.getString(5);
-                            mCachedInfo.condition = c.getString(6);
-                            mCachedInfo.timeStamp = Long.valueOf(c.getString(11));
-                            mCachedInfo.pinWheel = c.getString(13);
-                        } else {
-                            DayForecast day = new DayForecast();
-                            day.low = getFormattedValue(c.getFloat(7));
-                            day.high = getFormattedValue(c.getFloat(8));
-                            day.condition = c.getString(9);
-                            day.conditionCode = c.getInt(10);
-                            day.date = c.getString(12);
-                            forecastList.add(day);
-                        }
-                    }
-                    mCachedInfo.forecasts = forecastList;
-                }
-            } finally {
-                c.close();
+        try {
+            if (!c.moveToFirst()) {
+                return;
+            }
+            final int enabledIndex = c.getColumnIndex("enabled");
+            final int unitsIndex = c.getColumnIndex("units");
+            if (enabledIndex != -1 && c.getInt(enabledIndex) != 1) {
+                Log.w(TAG, "queryWeather while disabled");
+                return;
+            }
+            if (unitsIndex != -1) {
+                mMetric = c.getInt(unitsIndex) == 0;
+            }
+            final int cityIndex = c.getColumnIndex("city");
+            if (cityIndex == -1 || c.isNull(cityIndex)) {
+                // no weather data yet
+                return;
             }
+            final int windSpeedIndex = c.getColumnIndex("wind_speed");
+            final int windDirectionIndex = c.getColumnIndex("wind_direction");
+            final int conditionCodeIndex = c.getColumnIndex("condition_code");
+            final int temperatureIndex = c.getColumnIndex("temperature");
+            final int humidityIndex = c.getColumnIndex("humidity");
+            final int conditionIndex = c.getColumnIndex("condition");
+            final int timeStampIndex = c.getColumnIndex("time_stamp");
+            final int pinWheelIndex = c.getColumnIndex("pin_wheel");
+            final int lowIndex = c.getColumnIndex("forecast_low");
+            final int highIndex = c.getColumnIndex("forecast_high");
+            final int forecastConditionIndex = c.getColumnIndex("forecast_condition");
+            final int forecastConditionCodeIndex = c.getColumnIndex("forecast_condition_code");
+            final int dateIndex = c.getColumnIndex("forecast_date");
+
+            WeatherInfo info = new WeatherInfo();
+            info.city = c.getString(cityIndex);
+            info.windSpeed = getFormattedValue(getFloat(c, windSpeedIndex));
+            info.windDirection = String.valueOf(getInt(c, windDirectionIndex)) + "\u00b0";
+            info.conditionCode = getInt(c, conditionCodeIndex);
+            info.temp = getFormattedValue(getFloat(c, temperatureIndex));
+            info.humidity = getString(c, humidityIndex);
+            info.condition = getString(c, conditionIndex);
+            info.timeStamp = timeStampIndex != -1 ? c.getLong(timeStampIndex) : 0L;
+            info.pinWheel = getString(c, pinWheelIndex);
+            info.tempUnits = getTemperatureUnit();
+            info.windUnits = getWindUnit();
+
+            List<DayForecast> forecastList = new ArrayList<DayForecast>(c.getCount() - 1);
+            while (c.moveToNext()) {
+                DayForecast day = new DayForecast();
+                day.low = getFormattedValue(getFloat(c, lowIndex));
+                day.high = getFormattedValue(getFloat(c, highIndex));
+                day.condition = getString(c, forecastConditionIndex);
+                day.conditionCode = getInt(c, forecastConditionCodeIndex);
+                day.date = getString(c, dateIndex);
+                forecastList.add(day);
+            }
+            info.forecasts = forecastList;
+            mCachedInfo = info;
+        } finally {
+            c.close();
         }
-        updateUnits();
         if (DEBUG) Log.d(TAG, "queryWeather " + mCachedInfo);
     }
 
+    private static String getString(Cursor c, int index) {
+        return index != -1 ? c.getString(index) : null;
+    }
+
+    private static int getInt(Cursor c, int index) {
+        return index != -1 ? c.getInt(index) : 0;
+    }
+
+    private static float getFloat(Cursor c, int index) {
+        return index != -1 ? c.getFloat(index) : 0f;
+    }
+
     private void loadDefaultIconsPackage() {
         mPackageName = ICON_PACKAGE_DEFAULT;
         mIconPrefix = ICON_PREFIX_DEFAULT;
@@ -220,6 +280,15 @@ public class OmniJawsClient {
     }
 
     public void loadIconPackage(String iconPack) {
+        if (TextUtils.isEmpty(iconPack)) {
+            if (!ICON_PREFIX_DEFAULT.equals(mIconPrefix) || !ICON_PACKAGE_DEFAULT.equals(mPackageName)) {
+                loadDefaultIconsPackage();
+            }
+            return;
+        }
+        if (iconPack.equals(mSettingIconPackage)) {
+            return;
+        }
         mSettingIconPackage = iconPack;
         int idx = mSettingIconPackage.lastIndexOf(".");
         mPackageName = mSettingIconPackage.substring(0, idx);
@@ -237,15 +306,20 @@ public class OmniJawsClient {
         }
     }
 
-    public Drawable getWeatherConditionImage(int conditionCode) {
-        if (!isOmniJawsEnabled()) {
-            Log.w(TAG, "Requesting condition image while disabled");
-            return null;
-        }
-        if (!isAvailableApp(mPackageName)) {
+    /**
+     * Returns the icon pack images are loaded from, falls back to
+     * the default one if the selected pack is no longer available.
+     */
+    public String resolveIconPackage() {
+        if (!WeatherIconCache.isPackageAvailable(mContext, mPackageName)) {
             Log.w(TAG, "Icon pack no longer available - loading default " + mPackageName);
             loadDefaultIconsPackage();
         }
+        return mSettingIconPackage;
+    }
+
+    public Drawable getWeatherConditionImage(int conditionCode) {
+        resolveIconPackage();
         if (mRes == null) {
             Log.w(TAG, "Requesting condition image while disabled");
             return null;
@@ -291,25 +365,6 @@ public class OmniJawsClient {
         }
     }
 
-    private void updateUnits() {
-        if (!isOmniJawsServiceInstalled()) {
-            return;
-        }
-        final Cursor c = mContext.getContentResolver().query(SETTINGS_URI, SETTINGS_PROJECTION,
-                null, null, null);
-        if (c != null) {
-            int count = c.getCount();
-            if (count == 1) {
-                c.moveToPosition(0);
-                mMetric = c.getInt(1) == 0;
-                if (mCachedInfo != null) {
-                    mCachedInfo.tempUnits = getTemperatureUnit();
-                    mCachedInfo.windUnits = getWindUnit();
-                }
-            }
-        }
-    }
-
     private String getTemperatureUnit() {
         return "\u00b0" + (mMetric ? "C" : "F");
     }
@@ -49,6 +49,12 @@ import android.widget.RemoteViews;
 import org.omnirom.omnijaws.R;
 
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Calendar;
 import java.util.Date;
 
@@ -63,6 +69,20 @@ public class WeatherAppWidgetProvider extends AppWidgetProvider {
     private static final int EXTRA_ERROR_LOCATION = 1;
     private static final int EXTRA_ERROR_DISABLED = 2;
 
+    // render state shared by all widget updates, guarded by sCanvas
+    private static final Canvas sCanvas = new Canvas();
+    private static final Paint sShadowPaint = new Paint();
+    private static final int[] sShadowOffset = new int[2];
+    private static Bitmap sRefreshBitmap;
+    private static int sRefreshDensity;
+
+    static {
+        sCanvas.setDrawFilter(new PaintFlagsDrawFilter(Paint.ANTI_ALIAS_FLAG,
+                Paint.FILTER_BITMAP_FLAG));
+        sShadowPaint.setColor(Color.BLACK);
+        sShadowPaint.setMaskFilter(new BlurMaskFilter(5, BlurMaskFilter.Blur.OUTER));
+    }
+
     @Override
     public void onEnabled(Context context) {
         super.onEnabled(context);
@@ -158,9 +178,7 @@ public class WeatherAppWidgetProvider extends AppWidgetProvider {
         if (appWidgetManager != null) {
             ComponentName componentName = new ComponentName(context, WeatherAppWidgetProvider.class);
             int[] appWidgetIds = appWidgetManager.getAppWidgetIds(componentName);
-            for (int appWidgetId : appWidgetIds) {
-                updateWeather(context, appWidgetManager, appWidgetId);
-            }
+            updateWeather(context, appWidgetManager, appWidgetIds);
         }
     }
 
@@ -194,39 +212,122 @@ public class WeatherAppWidgetProvider extends AppWidgetProvider {
 
     private static void updateWeather(
             Context context, AppWidgetManager appWidgetManager, int appWidgetId) {
+        updateWeather(context, appWidgetManager, new int[] { appWidgetId });
+    }
+
+    /**
+     * Widgets sharing the same settings and size class get identical views, so
+     * the weather data is queried once and each distinct view rendered once.
+     */
+    private static void updateWeather(
+            Context context, AppWidgetManager appWidgetManager, int[] appWidgetIds) {
 
         if (LOGGING) {
-            Log.i(TAG, "updateWeather " + appWidgetId);
+            Log.i(TAG, "updateWeather " + Arrays.toString(appWidgetIds));
+        }
+        if (appWidgetIds.length == 0) {
+            return;
         }
         OmniJawsClient weatherClient = new OmniJawsClient(context);
         weatherClient.queryWeather();
+        OmniJawsClient.WeatherInfo weatherData = weatherClient.getWeatherInfo();
+        if (LOGGING && weatherData != null) {
+            Log.i(TAG, "updateWeather " + weatherData.toString());
+        }
+
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
-        String iconPack = prefs.getString(WeatherAppWidgetConfigure.KEY_ICON_PACK + "_" + appWidgetId, "");
-        if (!TextUtils.isEmpty(iconPack)) {
-            weatherClient.loadIconPackage(iconPack);
+        Map<WidgetConfig, List<Integer>> groups = new LinkedHashMap<>();
+        for (int appWidgetId : appWidgetIds) {
+            WidgetConfig config = new WidgetConfig(context, appWidgetManager, prefs, appWidgetId);
+            List<Integer> ids = groups.get(config);
+            if (ids == null) {
+                ids = new ArrayList<>();
+                groups.put(config, ids);
+            }
+            ids.add(appWidgetId);
+        }
+
+        for (Map.Entry<WidgetConfig, List<Integer>> group : groups.entrySet()) {
+            final WidgetConfig config = group.getKey();
+            final int[] ids = new int[group.getValue().size()];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = group.getValue().get(i);
+            }
+            weatherClient.loadIconPackage(config.iconPack);
+            RemoteViews widget = buildWeatherViews(context, weatherClient, weatherData, config);
+            if (weatherData == null) {
+                appWidgetManager.partiallyUpdateAppWidget(ids, widget);
+            } else {
+                appWidgetManager.updateAppWidget(ids, widget);
+            }
+            // the configure intent is the only per widget part
+            for (int appWidgetId : ids) {
+                appWidgetManager.partiallyUpdateAppWidget(appWidgetId,
+                        buildConfigureViews(context, appWidgetId));
+            }
+        }
+    }
+
+    private static class WidgetConfig {
+        final String iconPack;
+        final boolean withForecast;
+        final boolean backgroundShadow;
+        final boolean showDays;
+
+        WidgetConfig(Context context, AppWidgetManager appWidgetManager,
+                SharedPreferences prefs, int appWidgetId) {
+            iconPack = prefs.getString(WeatherAppWidgetConfigure.KEY_ICON_PACK + "_" + appWidgetId, "");
+            withForecast = prefs.getBoolean(WeatherAppWidgetConfigure.KEY_WITH_FORECAST + "_" + appWidgetId, true);
+            backgroundShadow = prefs.getBoolean(WeatherAppWidgetConfigure.KEY_BACKGROUND_SHADOW + "_" + appWidgetId, false);
+
+            Bundle newOptions = appWidgetManager.getAppWidgetOptions(appWidgetId);
+            int minHeight = context.getResources().getDimensionPixelSize(R.dimen.weather_widget_height);
+            int currentHeight = minHeight;
+            if (newOptions != null) {
+                currentHeight = newOptions.getInt(AppWidgetManager.OPTION_APPWIDGET_MAX_HEIGHT, minHeight);
+            }
+            showDays = currentHeight > minHeight && withForecast;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof WidgetConfig)) {
+                return false;
+            }
+            WidgetConfig other = (WidgetConfig) o;
+            return iconPack.equals(other.iconPack) && withForecast == other.withForecast
+                    && backgroundShadow == other.backgroundShadow && showDays == other.showDays;
         }
 
+        @Override
+        public int hashCode() {
+            return Objects.hash(iconPack, withForecast, backgroundShadow, showDays);
+        }
+    }
+
+    private static RemoteViews buildConfigureViews(Context context, int appWidgetId) {
+        RemoteViews widget = new RemoteViews(context.getPackageName(), R.layout.weather_appwidget);
+        Intent configureIntent = new Intent(context, WeatherAppWidgetConfigure.class);
+        configureIntent.putExtra(AppWidgetManager.EXTRA_APPWIDGET_ID, appWidgetId);
+        widget.setOnClickPendingIntent(R.id.weather_data,
+                PendingIntent.getActivity(context, appWidgetId, configureIntent, PendingIntent.FLAG_UPDATE_CURRENT));
+        return widget;
+    }
+
+    private static RemoteViews buildWeatherViews(Context context, OmniJawsClient weatherClient,
+            OmniJawsClient.WeatherInfo weatherData, WidgetConfig config) {
         RemoteViews widget = new RemoteViews(context.getPackageName(), R.layout.weather_appwidget);
-        widget.setImageViewBitmap(R.id.refresh, shadow(context.getResources(),
-                context.getResources().getDrawable(R.drawable.ic_menu_refresh)).getBitmap());
+        widget.setImageViewBitmap(R.id.refresh, getRefreshBitmap(context));
         Intent refreshIntent = new Intent();
         refreshIntent.setAction(REFRESH_BROADCAST);
         widget.setOnClickPendingIntent(R.id.refresh,
                 PendingIntent.getBroadcast(context, 0, refreshIntent, PendingIntent.FLAG_UPDATE_CURRENT));
         widget.setViewVisibility(R.id.refresh, View.VISIBLE);
 
-        Intent configureIntent = new Intent(context, WeatherAppWidgetConfigure.class);
-        configureIntent.putExtra(AppWidgetManager.EXTRA_APPWIDGET_ID, appWidgetId);
-        widget.setOnClickPendingIntent(R.id.weather_data,
-                PendingIntent.getActivity(context, 0, configureIntent, PendingIntent.FLAG_UPDATE_CURRENT));
-
-        boolean withForcast = prefs.getBoolean(WeatherAppWidgetConfigure.KEY_WITH_FORECAST + "_" + appWidgetId, true);
-
-        boolean backgroundShadow = prefs.getBoolean(WeatherAppWidgetConfigure.KEY_BACKGROUND_SHADOW + "_" + appWidgetId, false);
-        widget.setViewVisibility(R.id.background_shadow, backgroundShadow ? View.VISIBLE : View.GONE);
+        boolean withForcast = config.withForecast;
+        widget.setViewVisibility(R.id.background_shadow, config.backgroundShadow ? View.VISIBLE : View.GONE);
         initWidget(widget);
 
-        OmniJawsClient.WeatherInfo weatherData = weatherClient.getWeatherInfo();
         if (weatherData == null) {
             Log.e(TAG, "updateWeather weatherData == null");
             widget.setViewVisibility(R.id.current_weather_city, View.INVISIBLE);
@@ -234,27 +335,12 @@ public class WeatherAppWidgetProvider extends AppWidgetProvider {
             widget.setViewVisibility(R.id.current_weather_data, View.GONE);
             widget.setTextViewText(R.id.no_weather_notice, context.getResources().getString(R.string.omnijaws_service_unkown));
             widget.setViewVisibility(R.id.no_weather_notice, View.VISIBLE);
-            appWidgetManager.partiallyUpdateAppWidget(appWidgetId, widget);
-            return;
-        }
-        if (LOGGING) {
-            Log.i(TAG, "updateWeather " + weatherData.toString());
+            return widget;
         }
         widget.setViewVisibility(R.id.no_weather_notice, View.GONE);
 
-        Bundle newOptions = appWidgetManager.getAppWidgetOptions(appWidgetId);
-        int minHeight = context.getResources().getDimensionPixelSize(R.dimen.weather_widget_height);
-        int minWidth = context.getResources().getDimensionPixelSize(R.dimen.weather_widget_width);
-
-        int currentHeight = minHeight;
-        int currentWidth = minWidth;
-
-        if (newOptions != null) {
-            currentHeight = newOptions.getInt(AppWidgetManager.OPTION_APPWIDGET_MAX_HEIGHT, minHeight);
-            currentWidth = newOptions.getInt(AppWidgetManager.OPTION_APPWIDGET_MAX_WIDTH, minWidth);
-        }
-        boolean showDays = (currentHeight > minHeight && withForcast) ? true : false;
-        boolean showLocalDetails = (currentHeight > minHeight && withForcast) ? true : false;
+        boolean showDays = config.showDays;
+        boolean showLocalDetails = config.showDays;
 
         Long timeStamp = weatherData.timeStamp;
         String format = DateFormat.is24HourFormat(context) ? "HH:mm" : "hh:mm a";
@@ -265,9 +351,8 @@ public class WeatherAppWidgetProvider extends AppWidgetProvider {
         Calendar cal = Calendar.getInstance();
         String dayShort = sdf.format(new Date(cal.getTimeInMillis()));
 
-        Drawable d = weatherClient.getWeatherConditionImage(weatherData.forecasts.get(0).conditionCode);
-        BitmapDrawable bd = overlay(context.getResources(), d);
-        widget.setImageViewBitmap(R.id.forecast_image_0, bd.getBitmap());
+        widget.setImageViewBitmap(R.id.forecast_image_0,
+                getConditionBitmap(context, weatherClient, weatherData.forecasts.get(0).conditionCode));
         widget.setTextViewText(R.id.forecast_temp_0, formatTempString(weatherData.forecasts.get(0).low, 
             weatherData.forecasts.get(0).high, weatherData.tempUnits));
         widget.setTextViewText(R.id.forecast_text_0, dayShort);
@@ -277,9 +362,8 @@ public class WeatherAppWidgetProvider extends AppWidgetProvider {
         cal.add(Calendar.DATE, 1);
         dayShort = sdf.format(new Date(cal.getTimeInMillis()));
 
-        d = weatherClient.getWeatherConditionImage(weatherData.forecasts.get(1).conditionCode);
-        bd = overlay(context.getResources(), d);
-        widget.setImageViewBitmap(R.id.forecast_image_1, bd.getBitmap());
+        widget.setImageViewBitmap(R.id.forecast_image_1,
+                getConditionBitmap(context, weatherClient, weatherData.forecasts.get(1).conditionCode));
         widget.setTextViewText(R.id.forecast_temp_1, formatTempString(weatherData.forecasts.get(1).low, 
             weatherData.forecasts.get(1).high, weatherData.tempUnits));
         widget.setTextViewText(R.id.forecast_text_1, dayShort);
@@ -289,9 +373,8 @@ public class WeatherAppWidgetProvider extends AppWidgetProvider {
         cal.add(Calendar.DATE, 1);
         dayShort = sdf.format(new Date(cal.getTimeInMillis()));
 
-        d = weatherClient.getWeatherConditionImage(weatherData.forecasts.get(2).conditionCode);
-        bd = overlay(context.getResources(), d);
-        widget.setImageViewBitmap(R.id.forecast_image_2, bd.getBitmap());
+        widget.setImageViewBitmap(R.id.forecast_image_2,
+                getConditionBitmap(context, weatherClient, weatherData.forecasts.get(2).conditionCode));
         widget.setTextViewText(R.id.forecast_temp_2, formatTempString(weatherData.forecasts.get(2).low, 
             weatherData.forecasts.get(2).high, weatherData.tempUnits));
         widget.setTextViewText(R.id.forecast_text_2, dayShort);
@@ -301,9 +384,8 @@ public class WeatherAppWidgetProvider extends AppWidgetProvider {
         cal.add(Calendar.DATE, 1);
         dayShort = sdf.format(new Date(cal.getTimeInMillis()));
 
-        d = weatherClient.getWeatherConditionImage(weatherData.forecasts.get(3).conditionCode);
-        bd = overlay(context.getResources(), d);
-        widget.setImageViewBitmap(R.id.forecast_image_3, bd.getBitmap());
+        widget.setImageViewBitmap(R.id.forecast_image_3,
+                getConditionBitmap(context, weatherClient, weatherData.forecasts.get(3).conditionCode));
         widget.setTextViewText(R.id.forecast_temp_3, formatTempString(weatherData.forecasts.get(3).low, 
             weatherData.forecasts.get(3).high, weatherData.tempUnits));
         widget.setTextViewText(R.id.forecast_text_3, dayShort);
@@ -313,18 +395,16 @@ public class WeatherAppWidgetProvider extends AppWidgetProvider {
         cal.add(Calendar.DATE, 1);
         dayShort = sdf.format(new Date(cal.getTimeInMillis()));
 
-        d = weatherClient.getWeatherConditionImage(weatherData.forecasts.get(4).conditionCode);
-        bd = overlay(context.getResources(), d);
-        widget.setImageViewBitmap(R.id.forecast_image_4, bd.getBitmap());
+        widget.setImageViewBitmap(R.id.forecast_image_4,
+                getConditionBitmap(context, weatherClient, weatherData.forecasts.get(4).conditionCode));
         widget.setTextViewText(R.id.forecast_temp_4, formatTempString(weatherData.forecasts.get(4).low, 
             weatherData.forecasts.get(4).high, weatherData.tempUnits));
         widget.setTextViewText(R.id.forecast_text_4, dayShort);
         widget.setViewVisibility(R.id.forecast_text_4, showDays ? View.VISIBLE : View.GONE);
         widget.setViewVisibility(R.id.forecast_4, withForcast ? View.VISIBLE : View.GONE);
 
-        d = weatherClient.getWeatherConditionImage(weatherData.conditionCode);
-        bd = overlay(context.getResources(), d);
-        widget.setImageViewBitmap(R.id.current_image, bd.getBitmap());
+        widget.setImageViewBitmap(R.id.current_image,
+                getConditionBitmap(context, weatherClient, weatherData.conditionCode));
         widget.setTextViewText(R.id.current_temp, formatTempString(weatherData.temp, null, weatherData.tempUnits));
         widget.setTextViewText(R.id.current_text, context.getResources().getText(R.string.omnijaws_current_text));
         widget.setViewVisibility(R.id.current_text, showDays ? View.VISIBLE : View.GONE);
@@ -334,7 +414,7 @@ public class WeatherAppWidgetProvider extends AppWidgetProvider {
         widget.setTextViewText(R.id.current_weather_data, weatherData.windSpeed + " " + weatherData.windUnits + " "
                 + weatherData.pinWheel + " · " + weatherData.humidity);
 
-        appWidgetManager.updateAppWidget(appWidgetId, widget);
+        return widget;
     }
 
     private static void showProgress(
@@ -389,22 +469,40 @@ public class WeatherAppWidgetProvider extends AppWidgetProvider {
         widget.setViewVisibility(R.id.refresh, View.VISIBLE);
     }
 
+    private static Bitmap getConditionBitmap(Context context, OmniJawsClient weatherClient,
+            int conditionCode) {
+        final Resources res = context.getResources();
+        final String key = WeatherIconCache.getKey(weatherClient.resolveIconPackage(),
+                conditionCode, res.getDisplayMetrics().densityDpi, Color.WHITE);
+        Bitmap bitmap = WeatherIconCache.getBitmap(key);
+        if (bitmap == null) {
+            Drawable d = weatherClient.getWeatherConditionImage(conditionCode);
+            if (d == null) {
+                return null;
+            }
+            bitmap = overlay(res, d).getBitmap();
+            WeatherIconCache.putBitmap(key, bitmap);
+        }
+        return bitmap;
+    }
+
+    private static Bitmap getRefreshBitmap(Context context) {
+        final Resources res = context.getResources();
+        final int density = res.getDisplayMetrics().densityDpi;
+        synchronized (sCanvas) {
+            if (sRefreshBitmap == null || sRefreshDensity != density) {
+                sRefreshBitmap = shadow(res, res.getDrawable(R.drawable.ic_menu_refresh)).getBitmap();
+                sRefreshDensity = density;
+            }
+            return sRefreshBitmap;
+        }
+    }
+
     private static BitmapDrawable overlay(Resources resources, Drawable image) {
         if (image instanceof VectorDrawable) {
             image = applyTint(image);
         }
-        final Canvas canvas = new Canvas();
-        canvas.setDrawFilter(new PaintFlagsDrawFilter(Paint.ANTI_ALIAS_FLAG,
-                Paint.FILTER_BITMAP_FLAG));
-        final int height = image.getIntrinsicHeight();
-        final int width = image.getIntrinsicWidth();;
-
-        final Bitmap bmp = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
-        canvas.setBitmap(bmp);
-        image.setBounds(0, 0, width, height);
-        image.draw(canvas);
-
-        return shadow(resources, bmp);
+        return shadow(resources, image);
     }
 
     private static Drawable applyTint(Drawable icon) {
@@ -414,54 +512,39 @@ public class WeatherAppWidgetProvider extends AppWidgetProvider {
     }
 
     public static BitmapDrawable shadow(Resources resources, Drawable image) {
-        final Canvas canvas = new Canvas();
-        canvas.setDrawFilter(new PaintFlagsDrawFilter(Paint.ANTI_ALIAS_FLAG,
-                Paint.FILTER_BITMAP_FLAG));
         final int imageWidth = image.getIntrinsicWidth();
         final int imageHeight = image.getIntrinsicHeight();
-        final Bitmap b = Bitmap.createBitmap(imageWidth, imageHeight, Bitmap.Config.ARGB_8888);
-        canvas.setBitmap(b);
-        image.setBounds(0, 0, imageWidth, imageHeight);
-        image.draw(canvas);
-
-        BlurMaskFilter blurFilter = new BlurMaskFilter(5,
-                BlurMaskFilter.Blur.OUTER);
-        Paint shadowPaint = new Paint();
-        shadowPaint.setColor(Color.BLACK);
-        shadowPaint.setMaskFilter(blurFilter);
-
-        int[] offsetXY = new int[2];
-        Bitmap b2 = b.extractAlpha(shadowPaint, offsetXY);
-
-        Bitmap bmResult = Bitmap.createBitmap(b.getWidth(), b.getHeight(),
-                Bitmap.Config.ARGB_8888);
-
-        canvas.setBitmap(bmResult);
-        canvas.drawBitmap(b2, offsetXY[0], offsetXY[1], null);
-        canvas.drawBitmap(b, 0, 0, null);
-
-        return new BitmapDrawable(resources, bmResult);
+        synchronized (sCanvas) {
+            final Bitmap b = BitmapPool.acquire(imageWidth, imageHeight);
+            sCanvas.setBitmap(b);
+            image.setBounds(0, 0, imageWidth, imageHeight);
+            image.draw(sCanvas);
+
+            final BitmapDrawable result = composeShadow(resources, b);
+            BitmapPool.release(b);
+            return result;
+        }
     }
 
     public static BitmapDrawable shadow(Resources resources, Bitmap b) {
-        final Canvas canvas = new Canvas();
-        canvas.setDrawFilter(new PaintFlagsDrawFilter(Paint.ANTI_ALIAS_FLAG,
-                Paint.FILTER_BITMAP_FLAG));
-
-        BlurMaskFilter blurFilter = new BlurMaskFilter(5, BlurMaskFilter.Blur.OUTER);
-        Paint shadowPaint = new Paint();
-        shadowPaint.setColor(Color.BLACK);
-        shadowPaint.setMaskFilter(blurFilter);
+        synchronized (sCanvas) {
+            return composeShadow(resources, b);
+        }
+    }
 
-        int[] offsetXY = new int[2];
-        Bitmap b2 = b.extractAlpha(shadowPaint, offsetXY);
+    // must be called with the sCanvas lock held
+    private static BitmapDrawable composeShadow(Resources resources, Bitmap b) {
+        Bitmap b2 = b.extractAlpha(sShadowPaint, sShadowOffset);
 
+        // ends up in RemoteViews and the icon cache so never taken from the pool
         Bitmap bmResult = Bitmap.createBitmap(b.getWidth(), b.getHeight(),
                 Bitmap.Config.ARGB_8888);
 
-        canvas.setBitmap(bmResult);
-        canvas.drawBitmap(b2, offsetXY[0], offsetXY[1], null);
-        canvas.drawBitmap(b, 0, 0, null);
+        sCanvas.setBitmap(bmResult);
+        sCanvas.drawBitmap(b2, sShadowOffset[0], sShadowOffset[1], null);
+        sCanvas.drawBitmap(b, 0, 0, null);
+        sCanvas.setBitmap(null);
+        b2.recycle();
 
         return new BitmapDrawable(resources, bmResult);
     }
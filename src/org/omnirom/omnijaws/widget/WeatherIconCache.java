@@ -0,0 +1,151 @@
+/*
+* Copyright (C) 2017 The OmniROM Project
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 2 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program. If not, see <http://www.gnu.org/licenses/>.
+*
+*/
+package org.omnirom.omnijaws.widget;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageManager;
+import android.content.pm.PackageManager.NameNotFoundException;
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.util.Log;
+import android.util.LruCache;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Rendered condition icons of the widget and the availability of the
+ * icon pack packages they come from. Both are dropped for a package
+ * when it is changed or removed.
+ *
+ * The package receiver is registered at runtime once the cache is used.
+ * A manifest receiver would start the process for every package change
+ * on the device just to clear a cache that is empty in a new process.
+ */
+class WeatherIconCache {
+    private static final String TAG = "WeatherIconCache";
+    private static final boolean LOGGING = false;
+
+    private static final int MAX_CACHE_BYTES = 4 * 1024 * 1024;
+
+    private static final LruCache<String, Bitmap> sBitmaps =
+            new LruCache<String, Bitmap>(getCacheSize()) {
+        @Override
+        protected int sizeOf(String key, Bitmap value) {
+            return value.getByteCount();
+        }
+    };
+
+    // package name -> installed and enabled
+    private static final Map<String, Boolean> sAvailablePackages = new HashMap<>();
+    // guarded by sAvailablePackages
+    private static boolean sPackageReceiverRegistered;
+
+    private static final BroadcastReceiver sPackageReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            final Uri data = intent.getData();
+            if (data != null && invalidatePackage(data.getSchemeSpecificPart())) {
+                WeatherAppWidgetProvider.updateAllWeather(context);
+            }
+        }
+    };
+
+    private WeatherIconCache() {
+    }
+
+    private static int getCacheSize() {
+        return (int) Math.min(Runtime.getRuntime().maxMemory() / 16, MAX_CACHE_BYTES);
+    }
+
+    static String getKey(String iconPack, int conditionCode, int densityDpi, int tint) {
+        return iconPack + "|" + conditionCode + "|" + densityDpi + "|" + Integer.toHexString(tint);
+    }
+
+    static Bitmap getBitmap(String key) {
+        Bitmap bitmap = sBitmaps.get(key);
+        if (LOGGING) {
+            Log.i(TAG, (bitmap != null ? "hit " : "miss ") + key);
+        }
+        return bitmap;
+    }
+
+    static void putBitmap(String key, Bitmap bitmap) {
+        sBitmaps.put(key, bitmap);
+    }
+
+    static boolean isPackageAvailable(Context context, String packageName) {
+        synchronized (sAvailablePackages) {
+            if (!sPackageReceiverRegistered) {
+                registerPackageReceiver(context);
+                sPackageReceiverRegistered = true;
+            }
+            Boolean available = sAvailablePackages.get(packageName);
+            if (available == null) {
+                available = queryPackageAvailable(context, packageName);
+                sAvailablePackages.put(packageName, available);
+            }
+            return available;
+        }
+    }
+
+    /**
+     * @return true if anything was cached for the package
+     */
+    static boolean invalidatePackage(String packageName) {
+        boolean cached;
+        synchronized (sAvailablePackages) {
+            cached = sAvailablePackages.remove(packageName) != null;
+        }
+        for (String key : sBitmaps.snapshot().keySet()) {
+            // icon packs are named <package>.<prefix>
+            final String iconPack = key.substring(0, key.indexOf('|'));
+            final int idx = iconPack.lastIndexOf('.');
+            if (idx > 0 && packageName.equals(iconPack.substring(0, idx))) {
+                sBitmaps.remove(key);
+                cached = true;
+            }
+        }
+        return cached;
+    }
+
+    private static void registerPackageReceiver(Context context) {
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        filter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        filter.addDataScheme("package");
+        // receiver contexts may not register receivers themselves
+        context.getApplicationContext().registerReceiver(sPackageReceiver, filter);
+    }
+
+    private static boolean queryPackageAvailable(Context context, String packageName) {
+        final PackageManager pm = context.getPackageManager();
+        try {
+            pm.getPackageInfo(packageName, 0);
+            int enabled = pm.getApplicationEnabledSetting(packageName);
+            return enabled != PackageManager.COMPONENT_ENABLED_STATE_DISABLED &&
+                    enabled != PackageManager.COMPONENT_ENABLED_STATE_DISABLED_USER;
+        } catch (NameNotFoundException | IllegalArgumentException e) {
+            return false;
+        }
+    }
+}